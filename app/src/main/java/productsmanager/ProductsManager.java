@@ -0,0 +1,6788 @@
+package productsmanager;
+
+import javafx.animation.Animation;
+import javafx.animation.AnimationTimer;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.beans.Observable;
+import javafx.beans.binding.Bindings;
+import javafx.beans.binding.StringBinding;
+import javafx.beans.property.*;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
+import javafx.collections.transformation.TransformationList;
+import javafx.geometry.HPos;
+import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.geometry.Pos;
+import javafx.geometry.Side;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.apache.derby.jdbc.EmbeddedDriver;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.Collectors;
+
+public class ProductsManager extends Application {
+
+    static final int WRITE_QUEUE_CAPACITY = 1024;
+    static final int WRITE_BATCH_SIZE = 256;
+    static final long WRITE_BATCH_DELAY_MILLIS = 5;
+    private static final ProductLoader.Mode LOAD_MODE =
+            ProductLoader.Mode.valueOf(System.getProperty("products.load", "stream").toUpperCase(Locale.ROOT));
+    private static final int LOAD_PAGE_SIZE = Integer.getInteger("products.pageSize", 1000);
+    private static final ProductStore.Layout STORE_LAYOUT =
+            ProductStore.Layout.valueOf(System.getProperty("products.store", "objects").toUpperCase(Locale.ROOT));
+    private static final int RATES_REFRESH_SECONDS = 5;
+    private static final int BOOT_WAIT_SECONDS = 30;
+    private static final LatencyHistogram SHOWN_TIMER = Metrics.timer("startup.windowShown");
+    private static final LatencyHistogram READY_TIMER = Metrics.timer("startup.databaseReady");
+
+    private ProductsDataController dbManager;
+    private ProductsWriter dbWriter;
+    private ProductStore productStore;
+    private ProductLoader productLoader;
+    private SortedProducts userProducts, executiveProducts;
+    private TableView<Product> userView, executiveView;
+
+    private EventBus eventManager;
+    private ProductSoldViewListener soldViewListener;
+    private ExecutiveStats executiveStats;
+    private SalesRates salesRates;
+    private Timeline ratesRefresh;
+    private ChangeFeed changeFeed;
+    private CompletableFuture<OpenedDatabase> booting;
+    // set on the FX thread by stop(), so a boot finishing after it wires nothing up
+    private boolean stopped;
+    // names the add panel has sent and not heard back on; FX thread only
+    private final Set<String> adding = new HashSet<>();
+    private final ExecutorService bulkThread = Executors.newSingleThreadExecutor(daemonThreads("products-bulk"));
+    private final ExecutorService sortThread = Executors.newSingleThreadExecutor(daemonThreads("products-sort"));
+
+    @Override
+    public void start(Stage myStage) {
+
+        long launched = System.nanoTime();
+        startMetrics();
+        salesRates = new SalesRates();
+        productStore = ProductStore.empty(STORE_LAYOUT);
+
+        myStage.setTitle("Products Manager");
+
+        GridPane rootNode = new GridPane();
+        rootNode.setPadding(new Insets(15));
+        rootNode.setHgap(5);
+        rootNode.setVgap(5);
+        rootNode.setAlignment(Pos.CENTER);
+
+        Scene myScene = new Scene(rootNode, 900, 600);
+
+        // ======================
+        // add panel
+        // ======================
+
+        GridPane addPane = new GridPane();
+        addPane.setPadding(new Insets(15));
+        addPane.setHgap(5);
+        addPane.setVgap(5);
+        addPane.setAlignment(Pos.CENTER);
+
+        // product name
+        addPane.add(new Label("Product Name:"), 0, 0);
+        TextField txtProductName = new TextField();
+        addPane.add(txtProductName, 1, 0);
+        // existing names, so a product is not added twice under a slightly different name
+        typeAhead(txtProductName);
+
+        // product count
+        addPane.add(new Label("Product Count:"), 0, 1);
+        TextField txtProductCount = new TextField();
+        addPane.add(txtProductCount, 1, 1);
+
+        // add product
+        Button btnAdd = new Button("Add Product");
+        addPane.add(btnAdd, 1, 2);
+        GridPane.setHalignment(btnAdd, HPos.LEFT);        
+        
+        // status label
+        Label addStatus = new Label();
+        GridPane.setColumnSpan(addStatus, 2);
+        addPane.add(addStatus, 0, 3);
+        GridPane.setHalignment(addStatus, HPos.CENTER);
+
+        // add handler
+        btnAdd.setOnAction(e -> {
+
+            String productName = txtProductName.getText();
+            Integer count = parseCount(txtProductCount.getText());
+            if (productName.trim().isEmpty() || count == null) {
+                addStatus.setText("Enter a name and a count");
+                return;
+            }
+
+            // the catalog may not all be in memory yet, so the loader asks Derby too
+            String key = ProductIndex.key(productName);
+            if (!adding.add(key)) {
+                addStatus.setText(EventResult.DUPLICATE.message);
+                return;
+            }
+            productLoader.find(productName, existing -> {
+                if (existing != null) {
+                    adding.remove(key);
+                    addStatus.setText(EventResult.DUPLICATE.message);
+                    return;
+                }
+                Product product = new Product();
+                product.setName(productName);
+                product.setOriginalCount(count);
+
+                EventObject event = new EventObject(product);
+                event.setOnResult(result -> {
+                    adding.remove(key);
+                    addStatus.setText(result.message);
+                });
+                eventManager.notify(EventType.ADDED, event);
+            });
+
+        });
+
+        GridPane.setValignment(addPane, VPos.BOTTOM);
+
+        rootNode.add(addPane, 0, 0);
+
+        // ======================
+        // add panel
+        // ======================
+
+        GridPane salePanel = new GridPane();
+        salePanel.setPadding(new Insets(15));
+        salePanel.setHgap(5);
+        salePanel.setVgap(5);
+        salePanel.setAlignment(Pos.CENTER);
+
+        // product name
+        salePanel.add(new Label("Product to Buy:"), 0, 0);
+        TextField txtSoldProductName = new TextField();
+        salePanel.add(txtSoldProductName, 1, 0);
+        typeAhead(txtSoldProductName);
+
+        // product count
+        salePanel.add(new Label("How many ? "), 0, 1);
+        TextField txtSellCount = new TextField();
+        salePanel.add(txtSellCount, 1, 1);
+
+        // add product
+        Button btnBuy = new Button("Buy Product");
+        salePanel.add(btnBuy, 1, 2);
+        GridPane.setHalignment(btnBuy, HPos.LEFT);
+
+        // status label
+        Label sellStatus = new Label();
+        GridPane.setColumnSpan(sellStatus, 2);
+        salePanel.add(sellStatus, 0, 3);
+        GridPane.setHalignment(sellStatus, HPos.CENTER);
+
+        // add handler
+        btnBuy.setOnAction(e -> {
+
+            String productName = txtSoldProductName.getText();
+            Integer newSoldCount = parseCount(txtSellCount.getText());
+            if (newSoldCount == null || newSoldCount == 0) {
+                sellStatus.setText("Enter how many to buy");
+                return;
+            }
+
+            productLoader.find(productName, product -> {
+                if (product == null) {
+                    List<String> similar = productStore.search().similarTo(productName, 1);
+                    sellStatus.setText(EventResult.UNKNOWN_PRODUCT.message
+                            + (similar.isEmpty() ? "" : ". Did you mean " + similar.get(0) + "?"));
+                    return;
+                }
+                int soldSoFar = dbManager.reserve(product, newSoldCount);
+                if(soldSoFar < 0) {
+                    sellStatus.setText(EventResult.OUT_OF_STOCK.message);
+                    return;
+                }
+
+                EventObject event = new EventObject(product);
+                event.soldCount = soldSoFar;
+                event.quantity = newSoldCount;
+                event.setOnResult(result -> sellStatus.setText(result.message));
+                eventManager.notify(EventType.SOLD, event);
+            });
+
+        });
+
+        GridPane.setValignment(salePanel, VPos.CENTER);
+
+        rootNode.add(salePanel, 0, 1);
+
+        // ======================
+        // bulk import / export
+        // ======================
+
+        Button btnImport = new Button("Import CSV");
+        Button btnExport = new Button("Export CSV");
+        Button btnDiagnostics = new Button("Diagnostics");
+        btnDiagnostics.setOnAction(e -> showDiagnostics(myStage));
+        Label bulkStatus = new Label();
+        VBox bulkBox = new VBox(5, new HBox(5, btnImport, btnExport, btnDiagnostics), bulkStatus);
+        bulkBox.setPadding(new Insets(15));
+        rootNode.add(bulkBox, 0, 2);
+
+        FileChooser csvChooser = new FileChooser();
+        csvChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV files", "*.csv"));
+
+        btnImport.setOnAction(e -> {
+            File file = csvChooser.showOpenDialog(myStage);
+            if (file == null) {
+                return;
+            }
+            bulkStatus.setText("Importing " + file.getName() + "...");
+            bulkThread.execute(() -> {
+                String status;
+                try {
+                    ProductsDataController.ImportResult result = dbManager.importProducts(file.toPath());
+                    productLoader.loadImported(result.afterId);
+                    status = "Imported " + result.imported + ", skipped " + result.skipped;
+                } catch (IOException | SQLException ex) {
+                    status = "Import failed: " + ex.getMessage();
+                }
+                String done = status;
+                Platform.runLater(() -> bulkStatus.setText(done));
+            });
+        });
+
+        btnExport.setOnAction(e -> {
+            File file = csvChooser.showSaveDialog(myStage);
+            if (file == null) {
+                return;
+            }
+            bulkStatus.setText("Exporting to " + file.getName() + "...");
+            bulkThread.execute(() -> {
+                String status;
+                try {
+                    status = "Exported " + dbManager.exportProducts(file.toPath());
+                } catch (IOException | SQLException ex) {
+                    status = "Export failed: " + ex.getMessage();
+                }
+                String done = status;
+                Platform.runLater(() -> bulkStatus.setText(done));
+            });
+        });
+
+        // ===========================
+        // user view table
+        // ===========================
+
+        userView = new TableView<>();
+
+
+        TableColumn<Product, String> productNameCol = new TableColumn<>("Name");
+        TableColumn<Product, Integer> productCountCol = new TableColumn<>("In Store");
+        // not shown to users, but the Sort button can still order their view by it
+        TableColumn<Product, Integer> productSoldHiddenCol = new TableColumn<>("Sold");
+
+        // Defines how to fill data for each cell.
+        // Get value from property of UserAccount. .
+
+        productNameCol.setCellValueFactory(cell -> cell.getValue().nameProperty());
+        productNameCol.setStyle("-fx-alignment: CENTER;");
+        productCountCol.setCellValueFactory(cell -> cell.getValue().inStoreCountProperty().asObject());
+        productCountCol.setStyle("-fx-alignment: CENTER;");
+        productSoldHiddenCol.setCellValueFactory(cell -> cell.getValue().soldCountProperty().asObject());
+        productSoldHiddenCol.setVisible(false);
+
+        // Set Sort type for userName column
+        productNameCol.setSortType(TableColumn.SortType.DESCENDING);
+
+        // the Sort button reaches the table through these
+        productNameCol.setUserData(ProductSort.Key.NAME);
+        productCountCol.setUserData(ProductSort.Key.IN_STORE);
+        productSoldHiddenCol.setUserData(ProductSort.Key.SOLD);
+
+        // Display row data; header clicks and the Sort button both order it through the table's sort order
+        userProducts = productStore.sorted(ProductSort.BY_ID, sortThread, Platform::runLater);
+        userView.setSortPolicy(table -> {
+            userProducts.sortBy(sortOf(table));
+            return true;
+        });
+        userView.setItems(userProducts);
+
+        //noinspection unchecked
+        userView.getColumns().addAll(productNameCol, productCountCol, productSoldHiddenCol);
+        userView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+        VBox userViewBox = new VBox();
+        userViewBox.setAlignment(Pos.CENTER);
+        userViewBox.getChildren().add(new Label("User View"));
+        userViewBox.getChildren().add(userView);
+
+        rootNode.add(userViewBox, 1, 0);
+
+        ChoiceBox<ProductSort.Key> sortKey = new ChoiceBox<>(
+                FXCollections.observableArrayList(ProductSort.Key.values()));
+        sortKey.setValue(ProductSort.Key.NAME);
+        CheckBox sortDescending = new CheckBox("Descending");
+        Button btnSort = new Button("Sort Products");
+
+        HBox sortBox = new HBox(5, btnSort, sortKey, sortDescending);
+        sortBox.setAlignment(Pos.CENTER_LEFT);
+        rootNode.add(sortBox, 1, 2);
+        GridPane.setValignment(sortBox, VPos.BOTTOM);
+        GridPane.setHalignment(sortBox, HPos.LEFT);
+
+        // add handler
+        btnSort.setOnAction(e -> {
+
+            ProductSort sort = ProductSort.BY_ID.then(sortKey.getValue(), !sortDescending.isSelected());
+            if (sortKey.getValue() != ProductSort.Key.NAME) {
+                sort = sort.then(ProductSort.Key.NAME, true);
+            }
+
+            EventObject event = new EventObject(null);
+            event.sortedBy = sort;
+            eventManager.notify(EventType.SORTED, event);
+
+        });
+
+        GridPane.setRowSpan(userViewBox, 2);
+        GridPane.setValignment(userViewBox, VPos.CENTER);
+        GridPane.setHalignment(userViewBox, HPos.CENTER);
+
+        // ===========================
+        // executive view table
+        // ===========================
+
+        executiveView = new TableView<>();
+
+        TableColumn<Product, String> productNameColExec = new TableColumn<>("Name");
+        TableColumn<Product, Integer> productInStoreCol = new TableColumn<>("In Store");
+        TableColumn<Product, Integer> productSoldCol = new TableColumn<>("Sold");
+        TableColumn<Product, String> productSellThroughCol = new TableColumn<>("Sell-through");
+        TableColumn<Product, String> productRateCol = new TableColumn<>("Sold / h");
+        TableColumn<Product, String> productStockLeftCol = new TableColumn<>("Hours Left");
+
+
+        // Defines how to fill data for each cell.
+        // Get value from property of UserAccount. .
+
+        productNameColExec.setCellValueFactory(cell -> cell.getValue().nameProperty());
+        productNameColExec.setStyle("-fx-alignment: CENTER;");
+        productInStoreCol.setCellValueFactory(cell -> cell.getValue().inStoreCountProperty().asObject());
+        productInStoreCol.setStyle("-fx-alignment: CENTER;");
+        productSoldCol.setCellValueFactory(cell -> cell.getValue().soldCountProperty().asObject());
+        productSoldCol.setStyle("-fx-alignment: CENTER;");
+        productSellThroughCol.setCellValueFactory(cell -> sellThrough(cell.getValue()));
+        productSellThroughCol.setStyle("-fx-alignment: CENTER;");
+        // rates move with the clock as well as with the row; the refresh timeline below ticks ratesTick
+        LongProperty ratesTick = new SimpleLongProperty(this, "ratesTick");
+        productRateCol.setCellValueFactory(cell -> Bindings.createStringBinding(
+                () -> Long.toString(salesRates.sold(cell.getValue(), SalesRates.Window.HOUR)),
+                ratesTick, cell.getValue().soldCountProperty()));
+        productRateCol.setStyle("-fx-alignment: CENTER;");
+        productStockLeftCol.setCellValueFactory(cell -> Bindings.createStringBinding(() -> {
+            double hours = salesRates.hoursOfStockLeft(cell.getValue());
+            return Double.isInfinite(hours) ? "-" : String.format("%.1f", hours);
+        }, ratesTick, cell.getValue().soldCountProperty(), cell.getValue().originalCountProperty()));
+        productStockLeftCol.setStyle("-fx-alignment: CENTER;");
+
+        productNameColExec.setUserData(ProductSort.Key.NAME);
+        productInStoreCol.setUserData(ProductSort.Key.IN_STORE);
+        productSoldCol.setUserData(ProductSort.Key.SOLD);
+        // derived text: sorting it would order "10" before "9", and the rates change under the sort
+        productSellThroughCol.setSortable(false);
+        productRateCol.setSortable(false);
+        productStockLeftCol.setSortable(false);
+
+        // Display row data
+        executiveProducts = productStore.sorted(ProductSort.BY_ID, sortThread, Platform::runLater);
+        executiveView.setSortPolicy(table -> {
+            executiveProducts.sortBy(sortOf(table));
+            return true;
+        });
+        executiveView.setItems(executiveProducts);
+
+        //noinspection unchecked
+        executiveView.getColumns().addAll(productNameColExec, productInStoreCol, productSoldCol,
+                productSellThroughCol, productRateCol, productStockLeftCol);
+
+        VBox execViewBox= new VBox();
+        Label execViewLabel = new Label("Executive View");
+        execViewBox.getChildren().add(execViewLabel);
+        execViewBox.setAlignment(Pos.CENTER);
+        execViewBox.getChildren().add(executiveView);
+
+        executiveStats = new ExecutiveStats(productStore.products(), Platform::runLater);
+        Label totalsLabel = new Label();
+        totalsLabel.textProperty().bind(Bindings.format("Sold: %d   In store: %d   Sell-through: %.1f%%",
+                executiveStats.unitsSoldProperty(), executiveStats.unitsInStoreProperty(),
+                executiveStats.sellThroughProperty().multiply(100)));
+        ListView<String> topSellersView = new ListView<>(executiveStats.topSellers());
+        topSellersView.setPrefHeight(ExecutiveStats.TOP_SELLERS * 24 + 2);
+        Label ratesLabel = new Label();
+        execViewBox.getChildren().addAll(totalsLabel, ratesLabel, new Label("Top Sellers"), topSellersView);
+
+        LatencyHistogram ratesTimer = Metrics.timer("fx.salesRates.refresh");
+        ratesRefresh = new Timeline(new KeyFrame(Duration.seconds(RATES_REFRESH_SECONDS), e -> {
+            long start = System.nanoTime();
+            ratesLabel.setText(String.format("Sold in last minute: %d   hour: %d   day: %d",
+                    salesRates.sold(SalesRates.Window.MINUTE), salesRates.sold(SalesRates.Window.HOUR),
+                    salesRates.sold(SalesRates.Window.DAY)));
+            ratesTick.set(ratesTick.get() + 1);
+            ratesTimer.recordSince(start);
+        }));
+        ratesRefresh.setCycleCount(Animation.INDEFINITE);
+        ratesRefresh.play();
+
+        executiveView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+        rootNode.add(execViewBox, 2, 0);
+        GridPane.setRowSpan(execViewBox, 2);
+        GridPane.setValignment(execViewBox, VPos.CENTER);
+
+        myStage.setScene(myScene);
+
+        // Derby boots behind the window; nothing that writes is wired up until it is in
+        List<Node> needsDatabase = Arrays.asList(addPane, salePanel, btnImport, btnExport, btnSort);
+        needsDatabase.forEach(node -> node.setDisable(true));
+        bulkStatus.setText("Opening the database...");
+
+        myStage.show();
+        SHOWN_TIMER.recordSince(launched);
+
+        CompletableFuture<CatalogSnapshot> shown = CompletableFuture.supplyAsync(() -> {
+            CatalogSnapshot snapshot = CatalogSnapshot.open(CatalogSnapshot.FILE);
+            return snapshot != null && snapshot.loadInto(productStore, Platform::runLater, LOAD_PAGE_SIZE)
+                    ? snapshot : null;
+        }, bulkThread).exceptionally(failure -> {
+            // the catalog then comes from Derby as it would without a snapshot
+            failure.printStackTrace();
+            return null;
+        });
+        ExecutorService bootThread = Executors.newSingleThreadExecutor(daemonThreads("products-boot"));
+        booting = CompletableFuture.supplyAsync(() -> new OpenedDatabase(new ProductsDataController()), bootThread);
+        bootThread.shutdown();
+        booting.thenCombineAsync(shown, this::databaseOpened, Platform::runLater)
+                .thenCompose(reconciled -> reconciled)
+                .whenCompleteAsync((ignored, failure) -> {
+                    if (failure != null) {
+                        failure.printStackTrace();
+                        bulkStatus.setText("Could not open the database");
+                        return;
+                    }
+                    needsDatabase.forEach(node -> node.setDisable(false));
+                    bulkStatus.setText("");
+                    READY_TIMER.recordSince(launched);
+                }, Platform::runLater);
+
+    }
+
+    /** A booted controller and its change position, both read on the boot thread. */
+    private static final class OpenedDatabase {
+        final ProductsDataController controller;
+        final ProductsDataController.Change.Position position;
+
+        OpenedDatabase(ProductsDataController controller) {
+            this.controller = controller;
+            this.position = controller.changePosition();
+        }
+    }
+
+    /**
+     * Wires up everything that needs Derby, on the FX thread once it has
+     * booted and the snapshot, if any, is in the store. A snapshot that does
+     * not match the database is cleared out and the catalog loaded as before;
+     * one that does is brought up to date by the change feed. The returned
+     * future completes when the store has caught up.
+     */
+    private CompletableFuture<Void> databaseOpened(OpenedDatabase opened, CatalogSnapshot snapshot) {
+        if (stopped) {
+            // stop() has closed it already
+            return CompletableFuture.completedFuture(null);
+        }
+        dbManager = opened.controller;
+        ProductsDataController.Change.Position position = opened.position;
+        if (snapshot != null && !snapshot.matches(dbManager.catalogId(), position)) {
+            System.out.println("Catalog snapshot does not match the database; loading from Derby");
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            // what a rejected or truncated snapshot left behind
+            productStore.products().clear();
+        }
+
+        bulkThread.execute(() -> salesRates.seed(dbManager));
+        productLoader = new ProductLoader(dbManager, productStore, Platform::runLater, LOAD_MODE, LOAD_PAGE_SIZE);
+        dbWriter = new ProductsWriter(dbManager, Platform::runLater, WRITE_QUEUE_CAPACITY,
+                WRITE_BATCH_SIZE, WRITE_BATCH_DELAY_MILLIS);
+        attachListeners();
+        changeFeed = new ChangeFeed(dbManager, productStore, eventManager, Platform::runLater,
+                snapshot != null ? snapshot.position : position);
+        changeFeed.start();
+
+        if (LOAD_MODE == ProductLoader.Mode.LAZY) {
+            productLoader.loadOnScroll(userView);
+            productLoader.loadOnScroll(executiveView);
+        }
+        if (snapshot != null && snapshot.complete) {
+            productLoader.markLoaded();
+        } else {
+            productLoader.loadFirstPage();
+            if (LOAD_MODE != ProductLoader.Mode.LAZY) {
+                productLoader.loadRemaining();
+            }
+        }
+        return snapshot != null ? changeFeed.reconcile() : CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void stop(){
+        stopped = true;
+        ratesRefresh.stop();
+        bulkThread.shutdownNow();
+        sortThread.shutdownNow();
+        if (dbManager == null) {
+            // closed before Derby was up, so nothing was written and there is nothing to save,
+            // but a boot still running would leave Derby open at exit
+            closeWhenBooted();
+            return;
+        }
+        soldViewListener.stop();
+        boolean loadedAll = productLoader.loadedAll();
+        changeFeed.close();
+        productLoader.close();
+        eventManager.close();
+        dbWriter.close();
+        try {
+            CatalogSnapshot.write(CatalogSnapshot.FILE, dbManager, changeFeed.position(), loadedAll,
+                    productStore.products());
+        } catch (IOException e) {
+            System.err.println("Could not write the catalog snapshot: " + e);
+        }
+        dbManager.closeDatabase();
+    }
+
+    private void closeWhenBooted() {
+        if (booting == null) {
+            return;
+        }
+        try {
+            booting.get(BOOT_WAIT_SECONDS, TimeUnit.SECONDS).controller.closeDatabase();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // it never opened, so there is nothing to close
+        } catch (TimeoutException e) {
+            System.err.println("Derby still booting after " + BOOT_WAIT_SECONDS + "s; exiting without closing it");
+        }
+    }
+
+    private void attachListeners() {
+
+        eventManager = new ConcurrentEventBus(EventBus.defaultExecutors(Platform::runLater));
+
+        eventManager.subscribe(EventType.ADDED, new ProductAddedDatabaseListener(dbWriter, dbManager, productStore.index()));
+        eventManager.subscribe(EventType.ADDED, new ProductAddedStoreListener(productStore));
+
+        soldViewListener = new ProductSoldViewListener();
+        soldViewListener.start();
+
+        eventManager.subscribe(EventType.SOLD, new ProductSoldDatabaseListener(dbWriter, dbManager, eventManager));
+        eventManager.subscribe(EventType.SOLD, soldViewListener);
+        eventManager.subscribe(EventType.SOLD, executiveStats);
+        eventManager.subscribe(EventType.SOLD, salesRates);
+
+        eventManager.subscribe(EventType.SORTED,
+                new ProductsSortedListener(sort -> showSorted(userView, sort), productLoader));
+
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (Arrays.asList(args).contains("--headless")) {
+            InventoryServer.main(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--load-test")) {
+            LoadGenerator.main(args);
+            return;
+        }
+        launch(args);
+    }
+
+    /**
+     * Makes {@code sort} the table's sort order, through the columns whose
+     * user data is its keys, so the table sorts its items as it would for a
+     * header click and shows the sort arrows to match.
+     */
+    private static void showSorted(TableView<Product> table, ProductSort sort) {
+        List<TableColumn<Product, ?>> sortOrder = new ArrayList<>();
+        for (int i = 0; i < sort.size(); i++) {
+            for (TableColumn<Product, ?> column : table.getColumns()) {
+                if (column.getUserData() == sort.key(i)) {
+                    column.setSortType(sort.ascending(i)
+                            ? TableColumn.SortType.ASCENDING : TableColumn.SortType.DESCENDING);
+                    sortOrder.add(column);
+                }
+            }
+        }
+        table.getSortOrder().setAll(sortOrder);
+    }
+
+    /** The table's sort order as a {@link ProductSort}; only columns tagged with a key are sortable. */
+    private static ProductSort sortOf(TableView<Product> table) {
+        ProductSort sort = ProductSort.BY_ID;
+        for (TableColumn<Product, ?> column : table.getSortOrder()) {
+            sort = sort.then((ProductSort.Key) column.getUserData(),
+                    column.getSortType() == TableColumn.SortType.ASCENDING);
+        }
+        return sort;
+    }
+
+    /** Offers catalog names under {@code field} as the user types; picking one fills it in. */
+    private void typeAhead(TextField field) {
+        ContextMenu suggestions = new ContextMenu();
+        AtomicBoolean picking = new AtomicBoolean();
+        field.textProperty().addListener((observable, oldText, text) -> {
+            if (picking.getAndSet(false) || !field.isFocused() || text.trim().isEmpty()) {
+                suggestions.hide();
+                return;
+            }
+            productLoader.suggest(text, ProductSearch.DEFAULT_LIMIT, names -> {
+                if (!text.equals(field.getText())) {
+                    return;
+                }
+                if (names.isEmpty() || names.size() == 1 && names.get(0).equals(text)) {
+                    suggestions.hide();
+                    return;
+                }
+                List<MenuItem> items = new ArrayList<>(names.size());
+                for (String name : names) {
+                    MenuItem item = new MenuItem(name);
+                    item.setMnemonicParsing(false);
+                    item.setOnAction(e -> {
+                        // setting the same text fires no change to clear the flag
+                        picking.set(!name.equals(field.getText()));
+                        field.setText(name);
+                        field.positionCaret(name.length());
+                    });
+                    items.add(item);
+                }
+                suggestions.getItems().setAll(items);
+                if (!suggestions.isShowing()) {
+                    suggestions.show(field, Side.BOTTOM, 0, 0);
+                }
+            });
+        });
+        field.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (!focused) {
+                suggestions.hide();
+            }
+        });
+    }
+
+    /** A non-negative whole number, or null for anything else. */
+    private static Integer parseCount(String text) {
+        try {
+            int count = Integer.parseInt(text.trim());
+            return count < 0 ? null : count;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static void startMetrics() {
+        Metrics.registerMBean();
+        String metricsFile = System.getProperty("products.metrics.file");
+        if (metricsFile != null) {
+            Metrics.dumpPeriodically(Paths.get(metricsFile), Long.getLong("products.metrics.periodSeconds", 60));
+        }
+    }
+
+    /** A window with the {@link Metrics} report, re-read every second while it is open. */
+    private static void showDiagnostics(Stage owner) {
+        TextArea report = new TextArea(Metrics.report());
+        report.setEditable(false);
+        report.setStyle("-fx-font-family: monospace;");
+        Button reset = new Button("Reset");
+        reset.setOnAction(e -> {
+            Metrics.reset();
+            report.setText(Metrics.report());
+        });
+        VBox box = new VBox(5, report, reset);
+        box.setPadding(new Insets(10));
+        VBox.setVgrow(report, Priority.ALWAYS);
+
+        Stage diagnostics = new Stage();
+        diagnostics.initOwner(owner);
+        diagnostics.setTitle("Diagnostics");
+        diagnostics.setScene(new Scene(box, 900, 400));
+        Timeline refresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> report.setText(Metrics.report())));
+        refresh.setCycleCount(Animation.INDEFINITE);
+        diagnostics.setOnHidden(e -> refresh.stop());
+        refresh.play();
+        diagnostics.show();
+    }
+
+    private static StringBinding sellThrough(Product product) {
+        return Bindings.createStringBinding(() -> product.getOriginalCount() == 0 ? "-"
+                        : String.format("%.0f%%", 100.0 * product.getSoldCount() / product.getOriginalCount()),
+                product.soldCountProperty(), product.originalCountProperty());
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static class ProductsDataController {
+
+        private final String databaseName;
+        private static final int MAX_SELL_ATTEMPTS = 3;
+        static final int DEFAULT_POOL_SIZE = Integer.getInteger("products.db.poolSize", 4);
+        static final Persistence DEFAULT_PERSISTENCE = Persistence.valueOf(System.getProperty(
+                "products.persistence", "direct").toUpperCase(Locale.ROOT).replace('-', '_'));
+        static final long CHECKPOINT_MILLIS = Long.getLong("products.checkpoint.millis", 1000);
+        private static final int SCHEMA_ATTEMPTS = 3;
+        private static final String CATALOG_ID_PROPERTY = "products.catalog.id";
+        // another URL, e.g. jdbc:derby://host:1527/products, shares one network server between instances
+        static final String DATABASE_URL = System.getProperty("products.db.url");
+
+        /** DIRECT commits every write to Derby; WRITE_BEHIND journals sales and checkpoints them. */
+        enum Persistence { DIRECT, WRITE_BEHIND }
+
+        private static final String INSERT_SQL =
+                "insert into product (name, original, sold) values(?,?,?)";
+        private static final String SELL_SQL =
+                "update product set sold = sold + ? where id = ? and sold + ? <= original";
+        private static final String SOLD_COUNT_SQL = "select sold from product where id = ?";
+        private static final String FIND_SQL =
+                "select id, name, original, sold from product where name_key = ?";
+        private static final String ALL_SQL = "select id, name, original, sold from product";
+        private static final LatencyHistogram GET_PRODUCTS_TIMER = Metrics.timer("jdbc.getProducts");
+        private static final LatencyHistogram GET_PAGE_TIMER = Metrics.timer("jdbc.getProductsPage");
+        private static final LatencyHistogram FIND_TIMER = Metrics.timer("jdbc.findProduct");
+        private static final LatencyHistogram ADD_TIMER = Metrics.timer("jdbc.addProduct");
+        private static final LatencyHistogram WRITE_BATCH_TIMER = Metrics.timer("jdbc.writeBatch");
+        private static final LatencyHistogram SELL_TIMER = Metrics.timer("jdbc.sellProducts");
+        private static final LatencyHistogram COMMIT_TIMER = Metrics.timer("jdbc.commit");
+        private static final String SALE_SQL = "insert into sale (product_id, qty, sold_at) values (?, ?, ?)";
+        private static final String NAMES_SQL = "select name from product"
+                + " where name_key >= ? and name_key < ? order by name_key fetch next ? rows only";
+        private static final LatencyHistogram NAMES_TIMER = Metrics.timer("jdbc.findNamesStartingWith");
+        private static final String ADDED_SINCE_SQL = "select id, id, name, original, sold from product"
+                + " where id > ? order by id fetch next ? rows only";
+        private static final String SOLD_SINCE_SQL = "select s.version, p.id, p.name, p.original, p.sold"
+                + " from sale s join product p on p.id = s.product_id"
+                + " where s.version > ? order by s.version fetch next ? rows only";
+        private static final LatencyHistogram CHANGES_TIMER = Metrics.timer("jdbc.getChanges");
+        private static final String AFTER_SQL =
+                "select id, name, original, sold from product where id > ? order by id";
+        private static final String CSV_HEADER = "name,original,sold";
+        private static final int MAX_NAME_LENGTH = 30;
+        static final int IMPORT_BATCH_SIZE = Integer.getInteger("products.import.batchSize", 10_000);
+        static final int EXPORT_FETCH_SIZE = 1000;
+
+        private final Map<String, StockCounter> stock = new ConcurrentHashMap<>();
+        private String url;
+        private String catalogId;
+        private ConnectionPool pool;
+        private WriteBehindCache cache;
+
+        ProductsDataController() {
+            this("database");
+        }
+
+        ProductsDataController(String databaseName) {
+            this(databaseName, DEFAULT_POOL_SIZE, DEFAULT_PERSISTENCE);
+        }
+
+        ProductsDataController(String databaseName, int poolSize, Persistence persistence) {
+            this.databaseName = databaseName;
+            setUpDatabase(poolSize, persistence);
+        }
+
+        private void setUpDatabase(int poolSize, Persistence persistence) {
+
+            try {
+                Driver derbyEmbeddedDriver = new EmbeddedDriver();
+                DriverManager.registerDriver(derbyEmbeddedDriver);
+                url = DATABASE_URL != null ? DATABASE_URL : "jdbc:derby:" + databaseName + ";create=true";
+                pool = new ConnectionPool(url, poolSize);
+
+                try (PooledConnection conn = pool.borrow();
+                     Statement stmt = conn.connection.createStatement()) {
+                    for (int attempt = 1; ; attempt++) {
+                        try {
+                            createSchema(conn, stmt);
+                            break;
+                        } catch (SQLException e) {
+                            conn.connection.rollback();
+                            // another instance sharing the database got there first, making an object
+                            // (X0Y32) or dropping an old index (42X65); look again at what it left
+                            boolean raced = "X0Y32".equals(e.getSQLState()) || "42X65".equals(e.getSQLState());
+                            if (attempt == SCHEMA_ATTEMPTS || !raced) {
+                                throw e;
+                            }
+                        }
+                    }
+                }
+                if (persistence == Persistence.WRITE_BEHIND) {
+                    cache = new WriteBehindCache(pool, Paths.get(databaseName + "-journal"), CHECKPOINT_MILLIS);
+                }
+
+            } catch (SQLException ex) {
+                System.out.println("in connection" + ex);
+            } catch (IOException ex) {
+                System.err.println("write-behind journal unavailable, writing through: " + ex);
+            }
+
+        }
+
+        /** Rows whose id is above {@code id}, in id order, read from Derby in every mode. */
+        List<Product> getProductsAfter(int id) {
+            List<Product> products = new ArrayList<>();
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement after = conn.prepare(AFTER_SQL);
+                after.setInt(1, id);
+                after.setFetchSize(EXPORT_FETCH_SIZE);
+                try (ResultSet rows = after.executeQuery()) {
+                    while (rows.next()) {
+                        products.add(readProduct(rows));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return products;
+        }
+
+        /** What a bulk import did; the new rows are the ones with ids above {@link #afterId}. */
+        static final class ImportResult {
+            final int afterId;
+            final int imported;
+            final int skipped;
+
+            ImportResult(int afterId, int imported, int skipped) {
+                this.afterId = afterId;
+                this.imported = imported;
+                this.skipped = skipped;
+            }
+        }
+
+        /**
+         * Loads a {@code name,original,sold} CSV file (sold may be left out)
+         * into Derby. Lines are read in chunks of {@link #IMPORT_BATCH_SIZE}.
+         * Each chunk is parsed in parallel while the previous one is inserted
+         * as one JDBC batch and committed, so a failure keeps the chunks
+         * already committed. Malformed lines and names that already exist
+         * are skipped.
+         */
+        ImportResult importProducts(Path csv) throws IOException, SQLException {
+            int imported = 0;
+            int skipped = 0;
+            int afterId;
+            try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+                 PooledConnection conn = pool.borrow()) {
+                Set<String> names = new HashSet<>();
+                try (Statement stmt = conn.connection.createStatement()) {
+                    try (ResultSet max = stmt.executeQuery("select max(id) from product")) {
+                        afterId = max.next() ? max.getInt(1) : 0;
+                    }
+                    stmt.setFetchSize(EXPORT_FETCH_SIZE);
+                    try (ResultSet existing = stmt.executeQuery("select name from product")) {
+                        while (existing.next()) {
+                            names.add(ProductIndex.key(existing.getString(1)));
+                        }
+                    }
+                }
+
+                PreparedStatement insert = conn.prepare(INSERT_SQL);
+                List<String> lines = readLines(reader, true);
+                CompletableFuture<List<CsvRow>> parsing = parseLater(lines);
+                try {
+                    while (!lines.isEmpty()) {
+                        List<CsvRow> rows = parsing.join();
+                        // the next chunk parses while this one is inserted
+                        lines = readLines(reader, false);
+                        parsing = parseLater(lines);
+                        for (CsvRow row : rows) {
+                            if (row == null || !names.add(ProductIndex.key(row.name))) {
+                                skipped++;
+                                continue;
+                            }
+                            insert.setString(1, row.name);
+                            insert.setInt(2, row.originalCount);
+                            insert.setInt(3, row.soldCount);
+                            insert.addBatch();
+                        }
+                        imported += insert.executeBatch().length;
+                        commit(conn);
+                    }
+                } catch (SQLException e) {
+                    insert.clearBatch();
+                    conn.connection.rollback();
+                    throw e;
+                }
+            }
+            if (cache != null) {
+                cache.added(getProductsAfter(afterId));
+            }
+            return new ImportResult(afterId, imported, skipped);
+        }
+
+        /**
+         * Writes every product as {@code name,original,sold} CSV, streamed
+         * from Derby a fetch at a time (or from memory in write-behind mode).
+         * Returns the number of rows written.
+         */
+        int exportProducts(Path csv) throws IOException, SQLException {
+            int exported = 0;
+            try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+                out.write(CSV_HEADER);
+                out.newLine();
+                if (cache != null) {
+                    List<Product> products = cache.products();
+                    products.sort(Comparator.comparingInt(Product::getId));
+                    for (Product product : products) {
+                        writeCsv(out, product.getName(), product.getOriginalCount(), product.getSoldCount());
+                        exported++;
+                    }
+                    return exported;
+                }
+                try (PooledConnection conn = pool.borrow(); Statement stmt = conn.connection.createStatement()) {
+                    stmt.setFetchSize(EXPORT_FETCH_SIZE);
+                    try (ResultSet rows = stmt.executeQuery("select name, original, sold from product order by id")) {
+                        while (rows.next()) {
+                            writeCsv(out, rows.getString(1), rows.getInt(2), rows.getInt(3));
+                            exported++;
+                        }
+                    }
+                }
+            }
+            return exported;
+        }
+
+        private static List<String> readLines(BufferedReader reader, boolean first) throws IOException {
+            List<String> lines = new ArrayList<>(IMPORT_BATCH_SIZE);
+            String line;
+            while (lines.size() < IMPORT_BATCH_SIZE && (line = reader.readLine()) != null) {
+                if (first && lines.isEmpty() && line.trim().equalsIgnoreCase(CSV_HEADER)) {
+                    continue;
+                }
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+            return lines;
+        }
+
+        private static CompletableFuture<List<CsvRow>> parseLater(List<String> lines) {
+            return CompletableFuture.supplyAsync(() ->
+                    lines.parallelStream().map(CsvRow::parse).collect(Collectors.toList()));
+        }
+
+        private static void writeCsv(BufferedWriter out, String name, int originalCount, int soldCount)
+                throws IOException {
+            if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+                out.write('"');
+                out.write(name.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(name);
+            }
+            out.write(',');
+            out.write(Integer.toString(originalCount));
+            out.write(',');
+            out.write(Integer.toString(soldCount));
+            out.newLine();
+        }
+
+        /** One parsed import line; lighter than a {@link Product} and its properties. */
+        private static final class CsvRow {
+            final String name;
+            final int originalCount;
+            final int soldCount;
+
+            private CsvRow(String name, int originalCount, int soldCount) {
+                this.name = name;
+                this.originalCount = originalCount;
+                this.soldCount = soldCount;
+            }
+
+            /** Returns null for a line that is not a valid product. */
+            static CsvRow parse(String line) {
+                try {
+                    String name;
+                    int comma;
+                    if (line.startsWith("\"")) {
+                        StringBuilder quoted = new StringBuilder();
+                        int i = 1;
+                        while (true) {
+                            char c = line.charAt(i++);
+                            if (c != '"') {
+                                quoted.append(c);
+                            } else if (i < line.length() && line.charAt(i) == '"') {
+                                quoted.append('"');
+                                i++;
+                            } else {
+                                break;
+                            }
+                        }
+                        name = quoted.toString();
+                        comma = i;
+                        if (line.charAt(comma) != ',') {
+                            return null;
+                        }
+                    } else {
+                        comma = line.indexOf(',');
+                        name = line.substring(0, comma);
+                    }
+                    String[] counts = line.substring(comma + 1).split(",", -1);
+                    int originalCount = Integer.parseInt(counts[0].trim());
+                    int soldCount = counts.length > 1 ? Integer.parseInt(counts[1].trim()) : 0;
+                    name = name.trim();
+                    if (counts.length > 2 || name.isEmpty() || name.length() > MAX_NAME_LENGTH
+                            || originalCount < 0 || soldCount < 0 || soldCount > originalCount) {
+                        return null;
+                    }
+                    return new CsvRow(name, originalCount, soldCount);
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    return null;
+                }
+            }
+        }
+
+        ArrayList<Product> getProducts() {
+            long start = System.nanoTime();
+            try {
+                if (cache != null) {
+                    ArrayList<Product> products = new ArrayList<>(cache.products());
+                    GET_PRODUCTS_TIMER.addItems(products.size());
+                    return products;
+                }
+                ArrayList<Product> products = new ArrayList<>();
+                try (PooledConnection conn = pool.borrow()) {
+                    try (ResultSet rs = conn.prepare(ALL_SQL).executeQuery()) {
+                        while (rs.next()) {
+                            products.add(readProduct(rs));
+                        }
+                    }
+                    GET_PRODUCTS_TIMER.addItems(products.size());
+                    return products;
+                } catch (SQLException e) {
+                    GET_PRODUCTS_TIMER.failed();
+                    e.printStackTrace();
+                    return null;
+                }
+            } finally {
+                GET_PRODUCTS_TIMER.recordSince(start);
+            }
+        }
+
+        // whatever of the schema is missing, so older databases pick up new columns and indexes
+        private void createSchema(PooledConnection conn, Statement stmt) throws SQLException {
+            String createSQL = "create table product ("
+                    + "id integer not null generated always as"
+                    + " identity (start with 1, increment by 1), "
+                    + "name varchar(30) not null, original int, sold int, "
+                    + "constraint primary_key primary key (id))";
+
+            DatabaseMetaData dbm = conn.connection.getMetaData();
+            try (ResultSet rs = dbm.getTables(null, "APP", "PRODUCT", null)) {
+                if (rs.next()) {
+                    System.out.println("Table exists");
+                } else {
+                    System.out.println("Table does not exist");
+                    stmt.execute(createSQL);
+                    commit(conn);
+                }
+            }
+            createIndexes(dbm, stmt);
+            try (ResultSet rs = dbm.getTables(null, "APP", "SALE", null)) {
+                if (!rs.next()) {
+                    stmt.execute("create table sale (product_id int not null, qty int not null, "
+                            + "sold_at timestamp not null)");
+                    stmt.execute("create index sale_sold_at on sale (sold_at)");
+                }
+            }
+            try (ResultSet version = dbm.getColumns(null, "APP", "SALE", "VERSION")) {
+                if (!version.next()) {
+                    // the ChangeFeed's cursor over sales; existing rows are numbered too
+                    stmt.execute("alter table sale add column version bigint"
+                            + " generated always as identity");
+                    stmt.execute("create index sale_version on sale (version)");
+                }
+            }
+            try (ResultSet id = stmt.executeQuery(
+                    "values syscs_util.syscs_get_database_property('" + CATALOG_ID_PROPERTY + "')")) {
+                id.next();
+                catalogId = id.getString(1);
+            }
+            if (catalogId == null) {
+                // tells a catalog snapshot of this database from one of any other
+                catalogId = UUID.randomUUID().toString();
+                try (CallableStatement set = conn.connection.prepareCall(
+                        "call syscs_util.syscs_set_database_property('" + CATALOG_ID_PROPERTY + "', ?)")) {
+                    set.setString(1, catalogId);
+                    set.execute();
+                }
+            }
+            commit(conn);
+        }
+
+        // secondary indexes backing sort pushdown and the by-name lookups
+        private void createIndexes(DatabaseMetaData dbm, Statement stmt) throws SQLException {
+            try (ResultSet nameKey = dbm.getColumns(null, "APP", "PRODUCT", "NAME_KEY")) {
+                if (!nameKey.next()) {
+                    // Derby has no index on expressions, but it can index a generated column
+                    stmt.execute("alter table product add column name_key varchar(30)"
+                            + " generated always as (lower(trim(name)))");
+                }
+            }
+            Set<String> existing = new HashSet<>();
+            try (ResultSet indexes = dbm.getIndexInfo(null, "APP", "PRODUCT", false, false)) {
+                while (indexes.next()) {
+                    existing.add(indexes.getString("INDEX_NAME"));
+                }
+            }
+            // single-column indexes from before, which still left Derby sorting every page
+            for (String replaced : new String[] {"PRODUCT_NAME", "PRODUCT_SOLD"}) {
+                if (existing.contains(replaced)) {
+                    stmt.execute("drop index " + replaced);
+                }
+            }
+            // ProductSort.orderBy() orders, key by key and then by id; Derby 10.14 does not scan
+            // an index backwards, so descending orders need their own. In Store is an expression
+            // and would need a generated column, plus two more indexes that every sale rewrites
+            String[][] sortIndexes = {
+                    {"PRODUCT_BY_NAME", "name, id"},
+                    {"PRODUCT_BY_NAME_DESC", "name desc, id"},
+                    {"PRODUCT_BY_SOLD", "sold, name, id"},
+                    {"PRODUCT_BY_SOLD_DESC", "sold desc, name, id"}};
+            for (String[] index : sortIndexes) {
+                if (!existing.contains(index[0])) {
+                    stmt.execute("create index " + index[0] + " on product (" + index[1] + ")");
+                }
+            }
+            if (!existing.contains("PRODUCT_NAME_KEY")) {
+                stmt.execute("create index product_name_key on product (name_key)");
+            }
+        }
+
+        /**
+         * Keyset pagination: up to {@code limit} products that come after
+         * {@code after} in {@code sort} order (from the start when null).
+         * The ordering is done by Derby. Returns an empty list on failure.
+         */
+        List<Product> getProductsPage(ProductSort sort, Product after, int limit) {
+            long start = System.nanoTime();
+            try {
+                if (cache != null) {
+                    List<Product> products = cache.page(sort, after, limit);
+                    GET_PAGE_TIMER.addItems(products.size());
+                    return products;
+                }
+                List<Product> products = new ArrayList<>(limit);
+                String sql = "select id, name, original, sold from product"
+                        + (after == null ? "" : " where " + sort.seekPredicate())
+                        + " order by " + sort.orderBy() + " fetch next ? rows only";
+                try (PooledConnection conn = pool.borrow()) {
+                    PreparedStatement pageStatement = conn.prepare(sql);
+                    int parameter = after == null ? 1 : sort.bindSeek(pageStatement, after);
+                    pageStatement.setInt(parameter, limit);
+                    pageStatement.setFetchSize(limit);
+                    try (ResultSet page = pageStatement.executeQuery()) {
+                        while (page.next()) {
+                            products.add(readProduct(page));
+                        }
+                    }
+                } catch (SQLException e) {
+                    GET_PAGE_TIMER.failed();
+                    e.printStackTrace();
+                }
+                GET_PAGE_TIMER.addItems(products.size());
+                return products;
+            } finally {
+                GET_PAGE_TIMER.recordSince(start);
+            }
+        }
+
+        /**
+         * Up to {@code limit} names starting with {@code prefix}, ignoring
+         * case, in name order. A range scan of the name_key index, for
+         * searching before the catalog is in memory.
+         */
+        List<String> findNamesStartingWith(String prefix, int limit) {
+            long start = System.nanoTime();
+            List<String> names = new ArrayList<>(limit);
+            String key = ProductIndex.key(prefix);
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement namesStatement = conn.prepare(NAMES_SQL);
+                namesStatement.setString(1, key);
+                namesStatement.setString(2, key + Character.MAX_VALUE);
+                namesStatement.setInt(3, limit);
+                try (ResultSet found = namesStatement.executeQuery()) {
+                    while (found.next()) {
+                        names.add(found.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                NAMES_TIMER.failed();
+                e.printStackTrace();
+            } finally {
+                NAMES_TIMER.recordSince(start);
+            }
+            return names;
+        }
+
+        Product findProduct(String name) {
+            long start = System.nanoTime();
+            try {
+                if (cache != null) {
+                    return cache.find(name);
+                }
+                try (PooledConnection conn = pool.borrow()) {
+                    PreparedStatement findStatement = conn.prepare(FIND_SQL);
+                    // matched the way the in-memory index matches, ignoring case and outer spaces
+                    findStatement.setString(1, ProductIndex.key(name));
+                    try (ResultSet found = findStatement.executeQuery()) {
+                        return found.next() ? readProduct(found) : null;
+                    }
+                } catch (SQLException e) {
+                    FIND_TIMER.failed();
+                    e.printStackTrace();
+                    return null;
+                }
+            } finally {
+                FIND_TIMER.recordSince(start);
+            }
+        }
+
+        private static Product readProduct(ResultSet row) throws SQLException {
+            Product product = new Product();
+            product.setId(row.getInt("id"));
+            product.setName(row.getString("name"));
+            product.setOriginalCount(row.getInt("original"));
+            product.setSoldCount(row.getInt("sold"));
+            return product;
+        }
+
+        boolean addProduct(Product product) {
+            long start = System.nanoTime();
+            try {
+                boolean written = writeBatch(Collections.singletonList(product));
+                if (!written) {
+                    ADD_TIMER.failed();
+                }
+                return written;
+            } finally {
+                ADD_TIMER.recordSince(start);
+            }
+        }
+
+        /**
+         * Inserts the products and commits once. Inserts run one by one
+         * because Derby only reports generated keys for single-row inserts.
+         * Rolls back and returns false if any statement fails. Derby assigns
+         * the ids in write-behind mode too; the cache then holds the rows.
+         */
+        boolean writeBatch(Collection<Product> inserts) {
+            long start = System.nanoTime();
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement insertStatement = conn.prepare(INSERT_SQL, Statement.RETURN_GENERATED_KEYS);
+                try {
+                    for (Product product : inserts) {
+                        insertStatement.setString(1, product.getName());
+                        insertStatement.setInt(2, product.getOriginalCount());
+                        insertStatement.setInt(3, product.getSoldCount());
+                        insertStatement.executeUpdate();
+                        assignGeneratedId(insertStatement, product);
+                    }
+                    commit(conn);
+                } catch (SQLException e) {
+                    conn.connection.rollback();
+                    throw e;
+                }
+                if (cache != null) {
+                    cache.added(inserts);
+                }
+                return true;
+            } catch (SQLException e) {
+                WRITE_BATCH_TIMER.failed();
+                e.printStackTrace();
+                return false;
+            } finally {
+                WRITE_BATCH_TIMER.recordSince(start);
+            }
+        }
+
+        /**
+         * Atomically reserves {@code quantity} units of the product's stock in
+         * memory. Returns the new sold total, or -1 when there is not enough
+         * stock left. Safe to call from any number of threads.
+         */
+        int reserve(Product product, int quantity) {
+            return counterFor(product).reserve(quantity);
+        }
+
+        /**
+         * Gives back a reservation Derby refused. The counter is then raised
+         * to at least the stored sold count: a refusal means another terminal
+         * sold that stock, and without catching up this one would keep
+         * reserving it.
+         */
+        void release(Product product, int quantity) {
+            StockCounter counter = counterFor(product);
+            counter.release(quantity);
+            if (cache != null) {
+                Product cached = cache.find(product.getName());
+                if (cached != null) {
+                    counter.atLeast(cached.getSoldCount());
+                }
+                return;
+            }
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement soldCountStatement = conn.prepare(SOLD_COUNT_SQL);
+                soldCountStatement.setInt(1, product.getId());
+                try (ResultSet sold = soldCountStatement.executeQuery()) {
+                    if (sold.next()) {
+                        counter.atLeast(sold.getInt(1));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * The product's sold count as this instance has it: reserved sales
+         * included, refused ones given back. Once the writer has drained that
+         * is what Derby holds for it, as far as this instance knows.
+         */
+        int soldCount(Product product) {
+            StockCounter counter = stock.get(ProductIndex.key(product.getName()));
+            return counter == null ? product.getSoldCount() : counter.soldCount();
+        }
+
+        private StockCounter counterFor(Product product) {
+            return stock.computeIfAbsent(ProductIndex.key(product.getName()),
+                    key -> new StockCounter(product.getOriginalCount(), product.getSoldCount()));
+        }
+
+        /**
+         * Adds {@code quantity} to the product's sold count only if the row
+         * still has that much stock. Returns false if the stock ran out
+         * (for example, sold by another terminal) or the write failed.
+         */
+        boolean sellProduct(int id, int quantity) {
+            Set<Integer> rejected = sellProducts(Collections.singletonMap(id, quantity));
+            return rejected != null && rejected.isEmpty();
+        }
+
+        /**
+         * Conditionally adds each quantity to its product's sold count, in
+         * one batch and one commit, retrying when Derby reports a lock
+         * conflict. Returns the ids whose stock could not cover their
+         * quantity, or null if the batch failed.
+         */
+        Set<Integer> sellProducts(Map<Integer, Integer> quantities) {
+            long start = System.nanoTime();
+            try {
+                if (cache != null) {
+                    try {
+                        return cache.sell(quantities);
+                    } catch (IOException e) {
+                        SELL_TIMER.failed();
+                        e.printStackTrace();
+                        return null;
+                    }
+                }
+                List<Integer> ids = new ArrayList<>(quantities.keySet());
+                try (PooledConnection conn = pool.borrow()) {
+                    PreparedStatement sellStatement = conn.prepare(SELL_SQL);
+                    for (int attempt = 1; ; attempt++) {
+                        try {
+                            for (int id : ids) {
+                                int quantity = quantities.get(id);
+                                sellStatement.setInt(1, quantity);
+                                sellStatement.setInt(2, id);
+                                sellStatement.setInt(3, quantity);
+                                sellStatement.addBatch();
+                            }
+                            int[] counts = sellStatement.executeBatch();
+                            Set<Integer> rejected = new HashSet<>();
+                            Map<Integer, Integer> accepted = new HashMap<>();
+                            for (int i = 0; i < counts.length; i++) {
+                                if (counts[i] == 0) {
+                                    rejected.add(ids.get(i));
+                                } else {
+                                    accepted.put(ids.get(i), quantities.get(ids.get(i)));
+                                }
+                            }
+                            recordSales(conn, accepted, System.currentTimeMillis());
+                            commit(conn);
+                            return rejected;
+                        } catch (SQLException e) {
+                            sellStatement.clearBatch();
+                            conn.connection.rollback();
+                            // SQLState class 40 is a rolled-back transaction: deadlock or lock timeout
+                            boolean transientFailure = e.getSQLState() != null && e.getSQLState().startsWith("40");
+                            if (!transientFailure || attempt >= MAX_SELL_ATTEMPTS) {
+                                throw e;
+                            }
+                        }
+                    }
+                } catch (SQLException e) {
+                    SELL_TIMER.failed();
+                    e.printStackTrace();
+                    return null;
+                }
+            } finally {
+                SELL_TIMER.recordSince(start);
+            }
+        }
+
+        static void commit(PooledConnection conn) throws SQLException {
+            long start = System.nanoTime();
+            try {
+                conn.connection.commit();
+            } catch (SQLException e) {
+                COMMIT_TIMER.failed();
+                throw e;
+            } finally {
+                COMMIT_TIMER.recordSince(start);
+            }
+        }
+
+        /** Appends sale history rows in the caller's transaction, as one batch. */
+        static void recordSales(PooledConnection conn, Map<Integer, Integer> quantities, long soldAtMillis)
+                throws SQLException {
+            if (quantities.isEmpty()) {
+                return;
+            }
+            PreparedStatement saleStatement = conn.prepare(SALE_SQL);
+            Timestamp soldAt = new Timestamp(soldAtMillis);
+            try {
+                for (Map.Entry<Integer, Integer> sale : quantities.entrySet()) {
+                    saleStatement.setInt(1, sale.getKey());
+                    saleStatement.setInt(2, sale.getValue());
+                    saleStatement.setTimestamp(3, soldAt);
+                    saleStatement.addBatch();
+                }
+                saleStatement.executeBatch();
+            } catch (SQLException e) {
+                saleStatement.clearBatch();
+                throw e;
+            }
+        }
+
+        /**
+         * Streams the sale history since {@code sinceMillis}, oldest first,
+         * to {@code sales} as (product id, quantity, epoch millis).
+         */
+        void forEachSaleSince(long sinceMillis, SaleConsumer sales) {
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement history = conn.prepare(
+                        "select product_id, qty, sold_at from sale where sold_at > ? order by sold_at");
+                history.setTimestamp(1, new Timestamp(sinceMillis));
+                history.setFetchSize(EXPORT_FETCH_SIZE);
+                try (ResultSet rows = history.executeQuery()) {
+                    while (rows.next()) {
+                        sales.accept(rows.getInt(1), rows.getInt(2), rows.getTimestamp(3).getTime());
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        interface SaleConsumer {
+            void accept(int productId, int quantity, long soldAtMillis);
+        }
+
+        /** The connections; how long callers waited for one is in {@link Metrics}. */
+        ConnectionPool pool() {
+            return pool;
+        }
+
+        /** Names this database for a {@link CatalogSnapshot}; null if it could not be opened. */
+        String catalogId() {
+            return catalogId;
+        }
+
+        /** True when sales go to a local journal first, so Derby lags what this instance knows. */
+        boolean writesBehind() {
+            return cache != null;
+        }
+
+        /** The newest product id and sale version; anything above them is news to a load started now. */
+        Change.Position changePosition() {
+            try (PooledConnection conn = pool.borrow()) {
+                try (ResultSet product = conn.prepare("select max(id) from product").executeQuery();
+                     ResultSet sale = conn.prepare("select max(version) from sale").executeQuery()) {
+                    product.next();
+                    sale.next();
+                    return new Change.Position(product.getLong(1), sale.getLong(1));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return new Change.Position(0, 0);
+            }
+        }
+
+        /** Up to {@code limit} products inserted after id {@code afterId}, in id order. Null on failure. */
+        List<Change> getAddedSince(long afterId, int limit) {
+            return getChanges(ADDED_SINCE_SQL, afterId, limit);
+        }
+
+        /**
+         * Up to {@code limit} sales recorded after {@code afterVersion}, in
+         * version order, each with its product as it is now. Null on failure.
+         */
+        List<Change> getSoldSince(long afterVersion, int limit) {
+            return getChanges(SOLD_SINCE_SQL, afterVersion, limit);
+        }
+
+        private List<Change> getChanges(String sql, long after, int limit) {
+            long start = System.nanoTime();
+            try (PooledConnection conn = pool.borrow()) {
+                PreparedStatement changesStatement = conn.prepare(sql);
+                changesStatement.setLong(1, after);
+                changesStatement.setInt(2, limit);
+                List<Change> changes = new ArrayList<>();
+                try (ResultSet rows = changesStatement.executeQuery()) {
+                    while (rows.next()) {
+                        Product row = new Product();
+                        row.setId(rows.getInt(2));
+                        row.setName(rows.getString(3));
+                        row.setOriginalCount(rows.getInt(4));
+                        row.setSoldCount(rows.getInt(5));
+                        changes.add(new Change(rows.getLong(1), row));
+                    }
+                }
+                return changes;
+            } catch (SQLException e) {
+                CHANGES_TIMER.failed();
+                e.printStackTrace();
+                return null;
+            } finally {
+                CHANGES_TIMER.recordSince(start);
+            }
+        }
+
+        /**
+         * Raises the product's stock counter to a sold count read back from
+         * Derby. Returns the units sold elsewhere that this instance had not
+         * counted, or 0 when it already knew of them all.
+         */
+        int catchUp(Product product, int storedSold) {
+            return counterFor(product).atLeast(storedSold);
+        }
+
+        /** Counts a sale Derby has taken, before its seller is told. */
+        void confirm(Product product, int quantity) {
+            counterFor(product).confirm(quantity);
+        }
+
+        /**
+         * The product's sold count as stored in Derby, as far as this
+         * instance knows: confirmed sales only, where {@link #soldCount}
+         * also has the ones still waiting on the writer.
+         */
+        int confirmedSoldCount(Product product) {
+            StockCounter counter = stock.get(ProductIndex.key(product.getName()));
+            return counter == null ? product.getSoldCount() : counter.confirmedCount();
+        }
+
+        /** A new product (version is its id) or a sale (version is the sale's), with the row as it is now. */
+        static final class Change {
+            final long version;
+            final Product row;
+
+            Change(long version, Product row) {
+                this.version = version;
+                this.row = row;
+            }
+
+            /** Where a {@link ChangeFeed} starts reading. */
+            static final class Position {
+                final long productId;
+                final long saleVersion;
+
+                Position(long productId, long saleVersion) {
+                    this.productId = productId;
+                    this.saleVersion = saleVersion;
+                }
+            }
+        }
+
+        /**
+         * Remaining stock of one product, updated by compare-and-set. Keeps
+         * the units reserved and, behind them, the units Derby has confirmed.
+         */
+        static final class StockCounter {
+
+            private final int originalCount;
+            private final AtomicInteger soldCount;
+            private final AtomicInteger confirmed;
+
+            StockCounter(int originalCount, int soldCount) {
+                this.originalCount = originalCount;
+                this.soldCount = new AtomicInteger(soldCount);
+                this.confirmed = new AtomicInteger(soldCount);
+            }
+
+            int reserve(int quantity) {
+                while (true) {
+                    int current = soldCount.get();
+                    int next = current + quantity;
+                    if (quantity <= 0 || next > originalCount) {
+                        return -1;
+                    }
+                    if (soldCount.compareAndSet(current, next)) {
+                        return next;
+                    }
+                }
+            }
+
+            void release(int quantity) {
+                soldCount.addAndGet(-quantity);
+            }
+
+            void confirm(int quantity) {
+                confirmed.addAndGet(quantity);
+            }
+
+            /**
+             * Raises the counter to a sold count read from Derby. Returns the
+             * units it had not counted: sold elsewhere, so already stored. An
+             * own sale Derby has but the writer has not confirmed yet is
+             * among the reserved units, so it is not counted twice.
+             */
+            int atLeast(int sold) {
+                int current = soldCount.get();
+                while (current < sold) {
+                    if (soldCount.compareAndSet(current, sold)) {
+                        confirmed.addAndGet(sold - current);
+                        return sold - current;
+                    }
+                    current = soldCount.get();
+                }
+                return 0;
+            }
+
+            int soldCount() {
+                return soldCount.get();
+            }
+
+            int confirmedCount() {
+                return confirmed.get();
+            }
+        }
+
+        private static void assignGeneratedId(PreparedStatement insertStatement, Product product)
+                throws SQLException {
+            try (ResultSet keys = insertStatement.getGeneratedKeys()) {
+                if (keys.next()) {
+                    product.setId(keys.getInt(1));
+                }
+            }
+        }
+
+        void closeDatabase() {
+            if (cache != null) {
+                cache.close();
+            }
+            if (pool != null) {
+                pool.close();
+            }
+            if (url != null && url.startsWith("jdbc:derby://")) {
+                // a network server belongs to whoever started it
+                return;
+            }
+            try {
+                DriverManager.getConnection
+                        ("jdbc:derby:;shutdown=true");
+            } catch (SQLException ex) {
+                if (((ex.getErrorCode() == 50000) &&
+                        ("XJ015".equals(ex.getSQLState())))) {
+                    System.out.println("Derby shut down normally");
+                } else {
+                    System.err.println("Derby did not shut down normally");
+                    System.err.println(ex.getMessage());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Fixed set of embedded Derby connections, opened up front with
+     * auto-commit off. {@link #borrow()} blocks until one is free (up to
+     * {@code products.db.borrowTimeoutMillis}) and records how long the caller
+     * waited; closing the {@link PooledConnection} rolls back whatever it
+     * left uncommitted and hands it back.
+     */
+    static class ConnectionPool {
+
+        private static final long BORROW_TIMEOUT_MILLIS =
+                Long.getLong("products.db.borrowTimeoutMillis", 30_000);
+        private static final LatencyHistogram BORROW_WAIT_TIMER = Metrics.timer("jdbc.pool.borrowWait");
+        // only the borrows that found no idle connection and had to block
+        private static final LatencyHistogram BLOCKED_TIMER = Metrics.timer("jdbc.pool.blocked");
+
+        private final BlockingQueue<PooledConnection> idle;
+        private final List<PooledConnection> connections = new ArrayList<>();
+        private volatile boolean closed;
+
+        ConnectionPool(String url, int size) throws SQLException {
+            if (size < 1) {
+                throw new IllegalArgumentException("pool size must be positive: " + size);
+            }
+            idle = new ArrayBlockingQueue<>(size);
+            try {
+                for (int i = 0; i < size; i++) {
+                    Connection connection = DriverManager.getConnection(url);
+                    connection.setAutoCommit(false);
+                    PooledConnection pooled = new PooledConnection(this, connection);
+                    connections.add(pooled);
+                    idle.add(pooled);
+                }
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+
+        PooledConnection borrow() throws SQLException {
+            if (closed) {
+                throw new SQLException("connection pool is closed");
+            }
+            PooledConnection pooled = idle.poll();
+            if (pooled != null) {
+                BORROW_WAIT_TIMER.record(0);
+                return pooled;
+            }
+            long start = System.nanoTime();
+            try {
+                pooled = idle.poll(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            BORROW_WAIT_TIMER.record(waited);
+            BLOCKED_TIMER.record(waited);
+            if (pooled == null) {
+                BORROW_WAIT_TIMER.failed();
+                BLOCKED_TIMER.failed();
+                throw new SQLException("no connection free after " + BORROW_TIMEOUT_MILLIS + " ms");
+            }
+            return pooled;
+        }
+
+        void giveBack(PooledConnection pooled) {
+            if (!closed) {
+                idle.offer(pooled);
+            }
+        }
+
+        int size() {
+            return connections.size();
+        }
+
+        int idleCount() {
+            return idle.size();
+        }
+
+        void close() {
+            closed = true;
+            idle.clear();
+            for (PooledConnection pooled : connections) {
+                pooled.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * A connection checked out of a {@link ConnectionPool}, with the prepared
+     * statements it has already compiled cached by SQL text. Only the
+     * borrowing thread touches it, so the cache needs no locking.
+     */
+    static final class PooledConnection implements AutoCloseable {
+
+        final Connection connection;
+        private final ConnectionPool pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys + ":" + sql;
+            PreparedStatement statement = statements.get(key);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Returns the connection to its pool; it stays open. Whatever the
+         * borrower left uncommitted, a read and its locks or a write that
+         * failed half-way, is rolled back first, so no transaction outlives
+         * its borrow.
+         */
+        @Override
+        public void close() {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                System.err.println("rolling back pooled connection: " + e.getMessage());
+            }
+            pool.giveBack(this);
+        }
+
+        void closeConnection() {
+            try {
+                // one still borrowed at shutdown may be mid-transaction, and Derby refuses to close over one
+                connection.rollback();
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("closing pooled connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write-behind inventory for {@code products.persistence=write-behind}.
+     * The rows live in memory and answer every read. A sale is applied there
+     * and appended to a journal of fixed-size records (sequence, product id,
+     * quantity), which is forced to disk once per batch. A checkpointer writes
+     * the changed sold counts to Derby in bulk, together with the last
+     * journaled sequence, and then deletes the journal files that covers.
+     * On start-up the rows are read from Derby and any journal records past
+     * the checkpoint are replayed on top.
+     */
+    static class WriteBehindCache {
+
+        private static final int RECORD_SIZE = 16;
+        private static final String JOURNAL_PREFIX = "journal-";
+        private static final String JOURNAL_SUFFIX = ".log";
+        private static final boolean FORCE_JOURNAL =
+                Boolean.parseBoolean(System.getProperty("products.journal.force", "true"));
+        private static final LatencyHistogram FORCE_TIMER = Metrics.timer("writeBehind.journalForce");
+        private static final LatencyHistogram CHECKPOINT_TIMER = Metrics.timer("writeBehind.checkpoint");
+        // items: the journal records replayed on top of the last checkpoint
+        private static final LatencyHistogram RECOVERY_TIMER = Metrics.timer("writeBehind.recovery");
+
+        /** One product; sold and dirty are guarded by the cache's monitor. */
+        private static final class Row {
+            final int id;
+            final String name;
+            final int originalCount;
+            int soldCount;
+            // sold count as of the last checkpoint; the difference becomes sale history
+            int checkpointedCount;
+            boolean dirty;
+
+            Row(int id, String name, int originalCount, int soldCount) {
+                this.id = id;
+                this.name = name;
+                this.originalCount = originalCount;
+                this.soldCount = soldCount;
+                this.checkpointedCount = soldCount;
+            }
+
+            Product toProduct() {
+                Product product = new Product();
+                product.setId(id);
+                product.setName(name);
+                product.setOriginalCount(originalCount);
+                product.setSoldCount(soldCount);
+                return product;
+            }
+        }
+
+        private final ConnectionPool pool;
+        private final Path directory;
+        private final Map<Integer, Row> byId = new HashMap<>();
+        private final Map<String, Row> byName = new HashMap<>();
+        private final List<Path> sealed = new ArrayList<>();
+        private ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * WRITE_BATCH_SIZE);
+        // the batch being journaled, applied to the rows only once it is on disk
+        private final Map<Row, Integer> pending = new LinkedHashMap<>();
+        private final ScheduledExecutorService checkpointer;
+        private FileChannel journal;
+        private int generation;
+        private long nextSeq;
+        // the catalog as of a load's first page, sorted once and paged through; guarded by pagingLock
+        private final Object pagingLock = new Object();
+        private ProductSort pagedSort;
+        private List<Product> paged;
+        private int pagedUpTo;
+
+        WriteBehindCache(ConnectionPool pool, Path directory, long checkpointMillis)
+                throws IOException, SQLException {
+            this.pool = pool;
+            this.directory = directory;
+            Files.createDirectories(directory);
+            recover();
+            checkpointer = Executors.newSingleThreadScheduledExecutor(daemonThreads("products-checkpoint"));
+            checkpointer.scheduleWithFixedDelay(this::checkpointQuietly,
+                    checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void recover() throws IOException, SQLException {
+            long start = System.nanoTime();
+            long checkpointSeq;
+            try (PooledConnection conn = pool.borrow(); Statement stmt = conn.connection.createStatement()) {
+                try (ResultSet tables = conn.connection.getMetaData().getTables(null, "APP", "CHECKPOINT", null)) {
+                    if (!tables.next()) {
+                        stmt.execute("create table checkpoint (id int not null primary key, seq bigint not null)");
+                        stmt.execute("insert into checkpoint values (1, 0)");
+                        ProductsDataController.commit(conn);
+                    }
+                }
+                try (ResultSet seq = stmt.executeQuery("select seq from checkpoint where id = 1")) {
+                    checkpointSeq = seq.next() ? seq.getLong(1) : 0;
+                }
+                try (ResultSet rows = stmt.executeQuery("select id, name, original, sold from product")) {
+                    while (rows.next()) {
+                        put(new Row(rows.getInt("id"), rows.getString("name"),
+                                rows.getInt("original"), rows.getInt("sold")));
+                    }
+                }
+            }
+
+            long lastSeq = checkpointSeq;
+            int replayed = 0;
+            for (Path file : journalFiles()) {
+                sealed.add(file);
+                generation = Math.max(generation, generationOf(file));
+                ByteBuffer journalled = ByteBuffer.wrap(Files.readAllBytes(file));
+                // a torn record at the tail was never acknowledged, so it is dropped
+                while (journalled.remaining() >= RECORD_SIZE) {
+                    long seq = journalled.getLong();
+                    Row row = byId.get(journalled.getInt());
+                    int quantity = journalled.getInt();
+                    if (seq > checkpointSeq && row != null) {
+                        row.soldCount += quantity;
+                        row.dirty = true;
+                        replayed++;
+                    }
+                    lastSeq = Math.max(lastSeq, seq);
+                }
+            }
+            nextSeq = lastSeq + 1;
+            journal = openJournal(++generation);
+            RECOVERY_TIMER.addItems(replayed);
+            RECOVERY_TIMER.recordSince(start);
+            checkpoint();
+        }
+
+        private List<Path> journalFiles() throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                    JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            files.sort(Comparator.comparingInt(WriteBehindCache::generationOf));
+            return files;
+        }
+
+        private static int generationOf(Path file) {
+            String name = file.getFileName().toString();
+            return Integer.parseInt(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()));
+        }
+
+        private FileChannel openJournal(int journalGeneration) throws IOException {
+            return FileChannel.open(directory.resolve(JOURNAL_PREFIX + journalGeneration + JOURNAL_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        private void put(Row row) {
+            byId.put(row.id, row);
+            byName.put(ProductIndex.key(row.name), row);
+        }
+
+        synchronized List<Product> products() {
+            List<Product> products = new ArrayList<>(byId.size());
+            for (Row row : byId.values()) {
+                products.add(row.toProduct());
+            }
+            return products;
+        }
+
+        synchronized Product find(String name) {
+            Row row = byName.get(ProductIndex.key(name));
+            return row == null ? null : row.toProduct();
+        }
+
+        /**
+         * Same contract as {@link ProductsDataController#getProductsPage},
+         * sorted in memory. A first page sorts a copy of the catalog once;
+         * the pages after it are cut from that copy, so a whole load costs
+         * one sort. The copy is dropped once a short, and so last, page has
+         * gone out.
+         */
+        List<Product> page(ProductSort sort, Product after, int limit) {
+            Comparator<Product> order = sort.comparator();
+            synchronized (pagingLock) {
+                if (after == null || !sort.equals(pagedSort)) {
+                    paged = products();
+                    paged.sort(order);
+                    pagedSort = sort;
+                    pagedUpTo = 0;
+                }
+                int from = 0;
+                if (after != null) {
+                    // the usual caller continues from the last page handed out
+                    if (pagedUpTo > 0 && paged.get(pagedUpTo - 1).getId() == after.getId()) {
+                        from = pagedUpTo;
+                    } else {
+                        int at = Collections.binarySearch(paged, after, order);
+                        from = at >= 0 ? at + 1 : -at - 1;
+                    }
+                }
+                int to = (int) Math.min(paged.size(), (long) from + limit);
+                List<Product> page = new ArrayList<>(to - from);
+                for (Product product : paged.subList(from, to)) {
+                    page.add(product.copy());
+                }
+                pagedUpTo = to;
+                // a short page is the caller's last
+                if (page.size() < limit) {
+                    paged = null;
+                    pagedSort = null;
+                }
+                return page;
+            }
+        }
+
+        /** Registers products Derby has just inserted (and assigned ids to). */
+        synchronized void added(Collection<Product> products) {
+            for (Product product : products) {
+                // a row we already hold may have journaled sales Derby has not seen yet
+                if (!byId.containsKey(product.getId())) {
+                    put(new Row(product.getId(), product.getName(), product.getOriginalCount(),
+                            product.getSoldCount()));
+                }
+            }
+        }
+
+        /**
+         * Journals and then applies each sale that the stock can cover.
+         * Returns the ids refused for lack of stock, like
+         * {@link ProductsDataController#sellProducts}. If the journal write
+         * fails, no sale is applied.
+         */
+        synchronized Set<Integer> sell(Map<Integer, Integer> quantities) throws IOException {
+            Set<Integer> rejected = new HashSet<>();
+            for (Map.Entry<Integer, Integer> sale : quantities.entrySet()) {
+                Row row = byId.get(sale.getKey());
+                int quantity = sale.getValue();
+                if (row == null || soldCount(row) + quantity > row.originalCount) {
+                    rejected.add(sale.getKey());
+                } else {
+                    append(row, quantity);
+                }
+            }
+            flush();
+            return rejected;
+        }
+
+        // the row's sold count with this batch's records so far
+        private int soldCount(Row row) {
+            return row.soldCount + pending.getOrDefault(row, 0);
+        }
+
+        private void append(Row row, int quantity) {
+            if (!records.hasRemaining()) {
+                // one batch is one write, so it reaches the rows whole or not at all
+                ByteBuffer larger = ByteBuffer.allocate(records.capacity() * 2);
+                records.flip();
+                records = larger.put(records);
+            }
+            records.putLong(nextSeq++).putInt(row.id).putInt(quantity);
+            pending.merge(row, quantity, Integer::sum);
+        }
+
+        /**
+         * Writes the batch to the journal and forces it, then applies it to
+         * the rows. On failure the journal is cut back to where the batch
+         * began and the batch is dropped, so nothing unacknowledged is
+         * replayed later either.
+         */
+        private void flush() throws IOException {
+            if (records.position() == 0) {
+                return;
+            }
+            long journalSize = journal.size();
+            try {
+                records.flip();
+                while (records.hasRemaining()) {
+                    journal.write(records);
+                }
+                if (FORCE_JOURNAL) {
+                    long start = System.nanoTime();
+                    journal.force(false);
+                    FORCE_TIMER.recordSince(start);
+                }
+            } catch (IOException e) {
+                nextSeq -= records.limit() / RECORD_SIZE;
+                pending.clear();
+                records.clear();
+                try {
+                    journal.truncate(journalSize);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw e;
+            }
+            for (Map.Entry<Row, Integer> sale : pending.entrySet()) {
+                sale.getKey().soldCount += sale.getValue();
+                sale.getKey().dirty = true;
+            }
+            pending.clear();
+            records.clear();
+        }
+
+        private void checkpointQuietly() {
+            long start = System.nanoTime();
+            try {
+                checkpoint();
+            } catch (IOException | SQLException e) {
+                CHECKPOINT_TIMER.failed();
+                e.printStackTrace();
+            } finally {
+                CHECKPOINT_TIMER.recordSince(start);
+            }
+        }
+
+        /**
+         * Writes the dirty rows to Derby in one transaction. The journal is
+         * rotated first, so sales keep flowing while Derby commits; the sealed
+         * files are only deleted once the commit has made them redundant.
+         */
+        void checkpoint() throws IOException, SQLException {
+            long upTo;
+            Map<Integer, Integer> soldCounts = new HashMap<>();
+            Map<Integer, Integer> sales = new HashMap<>();
+            synchronized (this) {
+                for (Row row : byId.values()) {
+                    if (row.dirty) {
+                        soldCounts.put(row.id, row.soldCount);
+                        if (row.soldCount > row.checkpointedCount) {
+                            sales.put(row.id, row.soldCount - row.checkpointedCount);
+                        }
+                        row.dirty = false;
+                    }
+                }
+                if (soldCounts.isEmpty() && sealed.isEmpty()) {
+                    return;
+                }
+                upTo = nextSeq - 1;
+                if (!soldCounts.isEmpty()) {
+                    journal.close();
+                    sealed.add(directory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX));
+                    journal = openJournal(++generation);
+                }
+            }
+
+            List<Path> covered;
+            try (PooledConnection conn = pool.borrow()) {
+                try {
+                    PreparedStatement update = conn.prepare("update product set sold = ? where id = ?");
+                    for (Map.Entry<Integer, Integer> row : soldCounts.entrySet()) {
+                        update.setInt(1, row.getValue());
+                        update.setInt(2, row.getKey());
+                        update.addBatch();
+                    }
+                    if (!soldCounts.isEmpty()) {
+                        update.executeBatch();
+                    }
+                    // history is stamped with the checkpoint time, so it is as coarse as the interval
+                    ProductsDataController.recordSales(conn, sales, System.currentTimeMillis());
+                    PreparedStatement mark = conn.prepare("update checkpoint set seq = ? where id = 1");
+                    mark.setLong(1, upTo);
+                    mark.executeUpdate();
+                    ProductsDataController.commit(conn);
+                } catch (SQLException e) {
+                    conn.connection.rollback();
+                    synchronized (this) {
+                        for (int id : soldCounts.keySet()) {
+                            byId.get(id).dirty = true;
+                        }
+                    }
+                    throw e;
+                }
+            }
+            synchronized (this) {
+                for (Map.Entry<Integer, Integer> row : soldCounts.entrySet()) {
+                    byId.get(row.getKey()).checkpointedCount = row.getValue();
+                }
+                covered = new ArrayList<>(sealed);
+                sealed.clear();
+            }
+            for (Path file : covered) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /** Stops the checkpointer and folds everything journaled into Derby. */
+        void close() {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+                checkpoint();
+                synchronized (this) {
+                    journal.close();
+                }
+            } catch (IOException | SQLException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Keeps this instance's products in step with writes other instances
+     * make to a shared database. Two logs are already in Derby: product ids
+     * only grow, and every sale is a row in the sale table with an identity
+     * version. The feed polls both for entries past its cursors and replays
+     * the rows on the store thread as {@code added} and {@code sold} events
+     * marked stored, which the database listeners skip. Sold counts only
+     * grow, so a row read twice, or a change this instance has already
+     * shown, publishes nothing.
+     * <p>
+     * Ids and versions are handed out when a transaction writes, not when it
+     * commits, so one can appear after a higher one. A missing number holds
+     * its cursor (later rows are still applied, and read again) for up to
+     * {@link #GAP_TIMEOUT_MILLIS}; after that it belonged to a rolled-back
+     * transaction or a restart and is skipped.
+     */
+    static class ChangeFeed {
+
+        static final long POLL_MILLIS = Long.getLong("products.feed.millis", 1000);
+        static final long GAP_TIMEOUT_MILLIS = 10_000;
+        private static final int BATCH_SIZE = 1000;
+        private static final LatencyHistogram POLL_TIMER = Metrics.timer("feed.poll");
+
+        private final ProductsDataController controller;
+        private final ProductStore store;
+        private final EventBus bus;
+        private final Executor storeExecutor;
+        private final ScheduledExecutorService poller =
+                Executors.newSingleThreadScheduledExecutor(daemonThreads("products-feed"));
+        private final Cursor added;
+        private final Cursor sold;
+        private boolean polling;
+
+        /** Reads on from {@code from}, taken before the store was loaded so nothing falls in between. */
+        ChangeFeed(ProductsDataController controller, ProductStore store, EventBus bus,
+                   Executor storeExecutor, ProductsDataController.Change.Position from) {
+            this.controller = controller;
+            this.store = store;
+            this.bus = bus;
+            this.storeExecutor = storeExecutor;
+            this.added = new Cursor(from.productId);
+            this.sold = new Cursor(from.saleVersion);
+        }
+
+        void start() {
+            if (POLL_MILLIS <= 0) {
+                return;
+            }
+            if (controller.writesBehind()) {
+                // Derby trails the journal there, and a second writer would be overwritten at checkpoint
+                System.err.println("Change feed is off: write-behind persistence assumes a single instance");
+                return;
+            }
+            poller.scheduleWithFixedDelay(this::pollQuietly, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+            polling = true;
+        }
+
+        /**
+         * Brings a store filled from a {@link CatalogSnapshot} up to date,
+         * whether or not the feed polls: one poll from the snapshot's
+         * position or, with write-behind, where the sale log lags, a pass
+         * over every product the cache holds.
+         */
+        CompletableFuture<Void> reconcile() {
+            return CompletableFuture.runAsync(() -> {
+                if (!controller.writesBehind()) {
+                    poll();
+                    return;
+                }
+                List<Product> products = controller.getProducts();
+                if (products == null) {
+                    return;
+                }
+                for (int from = 0; from < products.size(); from += BATCH_SIZE) {
+                    List<Product> batch = products.subList(from, Math.min(products.size(), from + BATCH_SIZE));
+                    if (!handled(CompletableFuture.supplyAsync(() -> applyChanged(batch), storeExecutor))) {
+                        return;
+                    }
+                }
+            }, poller);
+        }
+
+        /**
+         * How far this instance's products are known to be current, for the
+         * next {@link CatalogSnapshot}: the last batch whose events every
+         * listener has handled, so a poll still running when this is read
+         * only means rows are read again. When the feed does not poll, this
+         * instance is taken to be the only writer.
+         */
+        ProductsDataController.Change.Position position() {
+            if (!polling) {
+                return controller.changePosition();
+            }
+            return new ProductsDataController.Change.Position(added.seen, sold.seen);
+        }
+
+        /**
+         * Stops polling without waiting: a poll in progress may be waiting
+         * on the store thread, which is the caller in the application.
+         */
+        void close() {
+            poller.shutdownNow();
+        }
+
+        private void pollQuietly() {
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void poll() {
+            long start = System.nanoTime();
+            boolean more;
+            do {
+                List<ProductsDataController.Change> addedRows = controller.getAddedSince(added.seen, BATCH_SIZE);
+                List<ProductsDataController.Change> soldRows = controller.getSoldSince(sold.seen, BATCH_SIZE);
+                if (addedRows == null || soldRows == null) {
+                    POLL_TIMER.failed();
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                long addedTo = added.reach(addedRows, now);
+                long soldTo = sold.reach(soldRows, now);
+
+                Map<Integer, Product> rows = new LinkedHashMap<>();
+                for (ProductsDataController.Change change : addedRows) {
+                    rows.put(change.row.getId(), change.row);
+                }
+                for (ProductsDataController.Change change : soldRows) {
+                    rows.put(change.row.getId(), change.row);
+                }
+                // one batch in flight, as with the loader's pages; the cursors only pass rows it has applied
+                if (!rows.isEmpty() && !handled(CompletableFuture.supplyAsync(() -> apply(rows.values()), storeExecutor))) {
+                    return;
+                }
+                more = added.moveTo(addedTo, addedRows.size()) | sold.moveTo(soldTo, soldRows.size());
+            } while (more);
+            POLL_TIMER.recordSince(start);
+        }
+
+        /**
+         * Waits for a batch the store thread is applying and for every
+         * listener of the events it raised. False when one of them failed or
+         * the feed is closing; its rows are read again on the next poll.
+         */
+        private boolean handled(CompletableFuture<CompletableFuture<Void>> applying) {
+            try {
+                applying.thenCompose(events -> events).get();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                POLL_TIMER.failed();
+                e.getCause().printStackTrace();
+                return false;
+            }
+        }
+
+        // a full pass only has news where a row is missing or has sold more
+        private CompletableFuture<Void> applyChanged(List<Product> rows) {
+            List<Product> changed = new ArrayList<>();
+            for (Product row : rows) {
+                Product local = store.index().findById(row.getId());
+                if (local == null || row.getSoldCount() > local.getSoldCount()) {
+                    changed.add(row);
+                }
+            }
+            return apply(changed);
+        }
+
+        /** Publishes the rows' news; the future completes once every listener has handled it. */
+        private CompletableFuture<Void> apply(Collection<Product> rows) {
+            List<CompletableFuture<Void>> events = new ArrayList<>();
+            for (Product row : rows) {
+                Product local = store.index().findById(row.getId());
+                if (local == null) {
+                    // a name already here is one of ours still waiting for its id, or a clash we keep out
+                    if (store.find(row.getName()) == null) {
+                        controller.catchUp(row, row.getSoldCount());
+                        EventObject event = new EventObject(row);
+                        event.stored = true;
+                        events.add(bus.notify(EventType.ADDED, event));
+                    }
+                    continue;
+                }
+                // units for the sales rates: a refused sale here may already have caught the counter up
+                int soldElsewhere = controller.catchUp(local, row.getSoldCount());
+                if (row.getSoldCount() > local.getSoldCount()) {
+                    EventObject event = new EventObject(local);
+                    event.soldCount = row.getSoldCount();
+                    event.quantity = soldElsewhere;
+                    event.stored = true;
+                    events.add(bus.notify(EventType.SOLD, event));
+                }
+            }
+            return CompletableFuture.allOf(events.toArray(new CompletableFuture<?>[0]));
+        }
+
+        /**
+         * How far one log has been read: every number up to {@code seen} is
+         * accounted for and applied. Moved on the poller thread only.
+         */
+        static final class Cursor {
+
+            // read by position() on other threads
+            volatile long seen;
+            private long blockedSince = -1;
+            private long blockedFrontier;
+
+            Cursor(long seen) {
+                this.seen = seen;
+            }
+
+            /**
+             * The last number with none missing below it, which {@code seen}
+             * moves up to once {@code changes} are applied.
+             */
+            long reach(List<ProductsDataController.Change> changes, long now) {
+                long next = seen + 1;
+                for (ProductsDataController.Change change : changes) {
+                    if (change.version > next) {
+                        if (blockedSince < 0) {
+                            blockedSince = now;
+                            blockedFrontier = changes.get(changes.size() - 1).version;
+                        }
+                        if (now - blockedSince < GAP_TIMEOUT_MILLIS) {
+                            break;
+                        }
+                        // whatever was missing when the frontier was read has had its time
+                        if (change.version - 1 > blockedFrontier) {
+                            next = Math.max(next, blockedFrontier + 1);
+                            break;
+                        }
+                    }
+                    next = change.version + 1;
+                }
+                if (blockedSince >= 0 && next - 1 >= blockedFrontier) {
+                    blockedSince = -1;
+                }
+                return next - 1;
+            }
+
+            /**
+             * Moves {@code seen} to {@code reached}. Returns true when a full
+             * batch of {@code read} moved it, so there may be more to read
+             * right away.
+             */
+            boolean moveTo(long reached, int read) {
+                boolean moved = reached > seen;
+                seen = reached;
+                return read == BATCH_SIZE && moved;
+            }
+        }
+    }
+
+    /**
+     * Runs {@link ProductsDataController} writes on a dedicated thread so the
+     * FX thread never waits on a Derby commit. Requests are queued in order;
+     * when the queue is full the submitting thread blocks until the writer
+     * catches up. {@link #close()} drains everything still queued.
+     * <p>
+     * With a batch size above one the writer group-commits: it collects up to
+     * {@code maxBatchSize} requests or waits {@code maxBatchDelayMillis} after
+     * the first one, whichever comes first, and commits them together. Sales
+     * of the same product within a batch are summed into one increment.
+     */
+    static class ProductsWriter {
+
+        private static final LatencyHistogram BATCH_TIMER = Metrics.timer("writer.batch");
+
+        enum Operation { INSERT, SELL }
+
+        private static final WriteRequest SHUTDOWN = new WriteRequest(null, null, null, 0, null);
+
+        private final ProductsDataController controller;
+        private final Executor callbackExecutor;
+        private final BlockingQueue<WriteRequest> queue;
+        private final int maxBatchSize;
+        private final long maxBatchDelayNanos;
+        private final Thread writerThread;
+        private volatile boolean closed;
+
+        ProductsWriter(ProductsDataController controller, Executor callbackExecutor, int capacity) {
+            this(controller, callbackExecutor, capacity, 1, 0);
+        }
+
+        ProductsWriter(ProductsDataController controller, Executor callbackExecutor, int capacity,
+                       int maxBatchSize, long maxBatchDelayMillis) {
+            this.controller = controller;
+            this.callbackExecutor = callbackExecutor;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+            this.writerThread = new Thread(this::drain, "products-writer");
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        }
+
+        /** {@code values} is a detached copy of {@code product}, taken on the thread that owns it. */
+        void addProduct(Product product, Product values, Consumer<Boolean> onComplete) {
+            submit(new WriteRequest(Operation.INSERT, product, values, 0, onComplete));
+        }
+
+        /**
+         * Persists a sale already reserved with {@link ProductsDataController#reserve}
+         * as a conditional increment. If Derby refuses it, the reservation is
+         * released before {@code onComplete} sees false. {@code values} is a
+         * detached copy of {@code product}, as for {@link #addProduct}.
+         */
+        void sellProduct(Product product, Product values, int quantity, Consumer<Boolean> onComplete) {
+            submit(new WriteRequest(Operation.SELL, product, values, quantity, onComplete));
+        }
+
+        /** Where {@code onComplete} callbacks run. */
+        Executor callbackExecutor() {
+            return callbackExecutor;
+        }
+
+        void close() {
+            closed = true;
+            try {
+                queue.put(SHUTDOWN);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void submit(WriteRequest request) {
+            if (closed) {
+                complete(request, false);
+                return;
+            }
+            try {
+                queue.put(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                complete(request, false);
+            }
+        }
+
+        private void drain() {
+            List<WriteRequest> batch = new ArrayList<>(maxBatchSize);
+            boolean running = true;
+            while (running) {
+                running = collect(batch);
+                if (!batch.isEmpty()) {
+                    long start = System.nanoTime();
+                    write(batch);
+                    BATCH_TIMER.recordSince(start);
+                    batch.clear();
+                }
+            }
+            // anything that raced in behind the shutdown marker
+            WriteRequest request;
+            while ((request = queue.poll()) != null) {
+                if (request != SHUTDOWN) {
+                    batch.add(request);
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+
+        /** Fills {@code batch} from the queue; returns false once shutdown was requested. */
+        private boolean collect(List<WriteRequest> batch) {
+            try {
+                WriteRequest request = queue.take();
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while (request != SHUTDOWN) {
+                    batch.add(request);
+                    if (batch.size() >= maxBatchSize) {
+                        return true;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    request = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (request == null) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void write(List<WriteRequest> batch) {
+            if (batch.size() == 1) {
+                write(batch.get(0));
+                return;
+            }
+            List<WriteRequest> writes = new ArrayList<>();
+            List<WriteRequest> sales = new ArrayList<>();
+            List<Product> inserts = new ArrayList<>();
+            for (WriteRequest request : batch) {
+                if (request.operation == Operation.SELL) {
+                    sales.add(request);
+                } else {
+                    writes.add(request);
+                    inserts.add(request.product);
+                }
+            }
+            if (!writes.isEmpty()) {
+                if (controller.writeBatch(inserts)) {
+                    for (WriteRequest request : writes) {
+                        complete(request, true);
+                    }
+                } else {
+                    // isolate the failing request instead of failing the whole batch
+                    for (WriteRequest request : writes) {
+                        write(request);
+                    }
+                }
+            }
+            // after the inserts, so a product added in this batch already has its id
+            if (!sales.isEmpty()) {
+                sell(sales);
+            }
+        }
+
+        private void sell(List<WriteRequest> sales) {
+            Map<Integer, Integer> quantities = new LinkedHashMap<>();
+            for (WriteRequest sale : sales) {
+                quantities.merge(sale.source.getId(), sale.quantity, Integer::sum);
+            }
+            Set<Integer> rejected = controller.sellProducts(quantities);
+            for (WriteRequest sale : sales) {
+                if (rejected != null && !rejected.contains(sale.source.getId())) {
+                    complete(sale, true);
+                } else {
+                    // the combined quantity did not fit; let each sale take what is left
+                    write(sale);
+                }
+            }
+        }
+
+        private void write(WriteRequest request) {
+            boolean success;
+            if (request.operation == Operation.INSERT) {
+                success = controller.addProduct(request.product);
+            } else {
+                success = controller.sellProduct(request.source.getId(), request.quantity);
+            }
+            complete(request, success);
+        }
+
+        private void complete(WriteRequest request, boolean success) {
+            if (success && request.operation == Operation.INSERT) {
+                request.source.setId(request.product.getId());
+            }
+            if (success && request.operation == Operation.SELL) {
+                controller.confirm(request.product, request.quantity);
+            }
+            if (!success && request.operation == Operation.SELL) {
+                // the id may have come from an insert after the values were copied
+                request.product.setId(request.source.getId());
+                controller.release(request.product, request.quantity);
+            }
+            callbackExecutor.execute(() -> request.onComplete.accept(success));
+        }
+
+        private static class WriteRequest {
+
+            final Operation operation;
+            final Product source;
+            final Product product;
+            final int quantity;
+            final Consumer<Boolean> onComplete;
+
+            WriteRequest(Operation operation, Product source, Product product, int quantity,
+                         Consumer<Boolean> onComplete) {
+                this.operation = operation;
+                this.source = source;
+                this.product = product;
+                this.quantity = quantity;
+                this.onComplete = onComplete;
+            }
+        }
+    }
+
+    /**
+     * Production-like load on the event pipeline without a window. Producer
+     * threads fire a mix of {@code added}, {@code sold} and {@code sorted}
+     * events through a {@link ConcurrentEventBus}, its database listeners
+     * and a {@link ProductsWriter} into an embedded Derby, as the buttons
+     * would. Sales pick products with Zipfian skew, so a few hot products
+     * take most of them. The FX-thread listeners (store, stats, rates, sort)
+     * run on one stand-in thread, or are left out with {@code ui=false}.
+     * Each producer waits for its event before firing the next, so latency
+     * is what a terminal would wait, queueing behind group commit included.
+     * <p>
+     * Prints progress every few seconds, then throughput and p50/p99/p999
+     * per event type. It then checks each product's sold count in Derby
+     * against the sales it confirmed, and exits non-zero if they differ.
+     * Settings are {@code products.loadtest.*} system properties:
+     * {@code threads} (32), {@code seconds} (30), {@code mix}
+     * (added:sold:sorted weights, 5:90:5), {@code skew} (Zipf exponent, 1.0;
+     * 0 is uniform), {@code products} (10000) and {@code ui} (true).
+     * Persistence and database follow the app's own properties.
+     * {@code java productsmanager.ProductsManager --load-test}
+     */
+    static class LoadGenerator {
+
+        static final int THREADS = Integer.getInteger("products.loadtest.threads", 32);
+        static final int SECONDS = Integer.getInteger("products.loadtest.seconds", 30);
+        static final String MIX = System.getProperty("products.loadtest.mix", "5:90:5");
+        static final double SKEW = Double.parseDouble(System.getProperty("products.loadtest.skew", "1.0"));
+        static final int PRODUCTS = Integer.getInteger("products.loadtest.products", 10_000);
+        static final boolean UI = Boolean.parseBoolean(System.getProperty("products.loadtest.ui", "true"));
+        private static final int REPORT_SECONDS = 5;
+        // enough that only a very long soak sells a hot product out
+        private static final int STOCK = Integer.MAX_VALUE / 2;
+        private static final EventType[] TYPES = {EventType.ADDED, EventType.SOLD, EventType.SORTED};
+
+        public static void main(String[] args) throws InterruptedException {
+            int[] weights = Arrays.stream(MIX.split(":")).mapToInt(Integer::parseInt).toArray();
+            if (weights.length != TYPES.length || Arrays.stream(weights).sum() <= 0) {
+                System.err.println("products.loadtest.mix needs added:sold:sorted weights, e.g. 5:90:5");
+                System.exit(2);
+            }
+
+            ProductsDataController controller = new ProductsDataController("loadtestdb");
+            String run = Long.toString(System.currentTimeMillis(), 36);
+            List<Product> catalog = new ArrayList<>(PRODUCTS);
+            for (int i = 0; i < PRODUCTS; i++) {
+                Product product = new Product();
+                product.setName("load-" + run + "-" + i);
+                product.setOriginalCount(STOCK);
+                catalog.add(product);
+            }
+            int batch = ProductsDataController.IMPORT_BATCH_SIZE;
+            for (int from = 0; from < PRODUCTS; from += batch) {
+                controller.writeBatch(catalog.subList(from, Math.min(PRODUCTS, from + batch)));
+            }
+
+            ExecutorService fxStandIn = Executors.newSingleThreadExecutor(daemonThreads("loadtest-fx"));
+            ExecutorService sortThread = Executors.newSingleThreadExecutor(daemonThreads("loadtest-sort"));
+            ProductStore store = new ProductStore(catalog);
+            ProductsWriter writer = new ProductsWriter(controller, Runnable::run, WRITE_QUEUE_CAPACITY,
+                    WRITE_BATCH_SIZE, WRITE_BATCH_DELAY_MILLIS);
+            EventBus bus = new ConcurrentEventBus(EventBus.defaultExecutors(fxStandIn));
+            bus.subscribe(EventType.ADDED, new ProductAddedDatabaseListener(writer, controller, store.index()));
+            bus.subscribe(EventType.SOLD, new ProductSoldDatabaseListener(writer, controller, bus));
+            if (UI) {
+                ProductLoader loader = new ProductLoader(controller, store, fxStandIn,
+                        ProductLoader.Mode.STREAM, LOAD_PAGE_SIZE);
+                loader.markLoaded();
+                bus.subscribe(EventType.ADDED, new ProductAddedStoreListener(store));
+                bus.subscribe(EventType.SOLD, new ProductSoldStoreListener());
+                bus.subscribe(EventType.SOLD, new ExecutiveStats(store.products(), fxStandIn));
+                bus.subscribe(EventType.SOLD, new SalesRates());
+                SortedProductView sorted = new SortedProductView(store.products(), ProductSort.BY_ID,
+                        sortThread, fxStandIn);
+                bus.subscribe(EventType.SORTED, new ProductsSortedListener(sorted::sortBy, loader));
+            }
+
+            System.out.printf("%d threads for %d s, added:sold:sorted %s, %,d products, skew %.2f, UI listeners %s%n",
+                    THREADS, SECONDS, MIX, PRODUCTS, SKEW, UI ? "on" : "off");
+            Zipf skus = new Zipf(PRODUCTS, SKEW);
+            LatencyHistogram[] timers = new LatencyHistogram[TYPES.length];
+            for (int t = 0; t < TYPES.length; t++) {
+                timers[t] = Metrics.timer("loadtest." + TYPES[t].name().toLowerCase(Locale.ROOT));
+            }
+            Map<EventResult, LongAdder> outcomes = new EnumMap<>(EventResult.class);
+            for (EventResult result : EventResult.values()) {
+                outcomes.put(result, new LongAdder());
+            }
+            AtomicLongArray confirmed = new AtomicLongArray(PRODUCTS);
+            AtomicInteger addedSoFar = new AtomicInteger();
+
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+            Thread[] producers = new Thread[THREADS];
+            for (int p = 0; p < THREADS; p++) {
+                producers[p] = new Thread(() -> {
+                    Random random = new Random();
+                    while (System.nanoTime() < deadline) {
+                        int type = pick(weights, random);
+                        long begin = System.nanoTime();
+                        CompletableFuture<?> done;
+                        if (TYPES[type] == EventType.SOLD) {
+                            int sku = skus.next(random);
+                            done = sell(controller, bus, catalog.get(sku), 1 + random.nextInt(3), confirmed, sku);
+                        } else if (TYPES[type] == EventType.ADDED) {
+                            Product product = new Product();
+                            product.setName("load-" + run + "-added-" + addedSoFar.incrementAndGet());
+                            product.setOriginalCount(STOCK);
+                            done = add(bus, product);
+                        } else {
+                            ProductSort.Key[] keys = ProductSort.Key.values();
+                            ProductSort.Key key = keys[random.nextInt(keys.length)];
+                            EventObject event = new EventObject(null);
+                            event.sortedBy = ProductSort.BY_ID.then(key, random.nextBoolean());
+                            done = bus.notify(EventType.SORTED, event).thenApply(ignored -> null);
+                        }
+                        Object outcome = done.join();
+                        timers[type].recordSince(begin);
+                        if (outcome instanceof EventResult) {
+                            outcomes.get(outcome).increment();
+                        }
+                    }
+                }, "loadtest-" + p);
+                producers[p].start();
+            }
+            long lastCount = 0;
+            long lastReport = start;
+            while (producers[0].isAlive()) {
+                producers[0].join(TimeUnit.SECONDS.toMillis(REPORT_SECONDS));
+                long now = System.nanoTime();
+                long count = Arrays.stream(timers).mapToLong(LatencyHistogram::count).sum();
+                System.out.printf("  %4d s  %,10.0f events/sec  sold p99 so far %s%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        (count - lastCount) * 1e9 / (now - lastReport), millis(timers[1].percentileNanos(99)));
+                lastCount = count;
+                lastReport = now;
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            long nanos = System.nanoTime() - start;
+            bus.close();
+            writer.close();
+
+            System.out.printf("%-8s %12s %12s %10s %10s %10s %10s%n",
+                    "event", "count", "per sec", "p50", "p99", "p999", "max");
+            for (int t = 0; t < TYPES.length; t++) {
+                LatencyHistogram timer = timers[t];
+                System.out.printf("%-8s %,12d %,12.0f %10s %10s %10s %10s%n", TYPES[t].name().toLowerCase(Locale.ROOT),
+                        timer.count(), timer.count() * 1e9 / nanos, millis(timer.percentileNanos(50)),
+                        millis(timer.percentileNanos(99)), millis(timer.percentileNanos(99.9)),
+                        millis(timer.maxNanos()));
+            }
+            outcomes.forEach((result, count) -> {
+                if (count.sum() > 0) {
+                    System.out.printf("  %-16s %,d%n", result, count.sum());
+                }
+            });
+
+            // read back what Derby holds, past any write-behind cache, whose last checkpoint lands on close
+            controller.closeDatabase();
+            ProductsDataController reopened = new ProductsDataController("loadtestdb",
+                    ProductsDataController.DEFAULT_POOL_SIZE, ProductsDataController.Persistence.DIRECT);
+            boolean consistent = check(reopened, catalog, confirmed, run, outcomes.get(EventResult.ADDED).sum());
+            reopened.closeDatabase();
+            fxStandIn.shutdown();
+            sortThread.shutdown();
+            if (!consistent) {
+                System.exit(1);
+            }
+        }
+
+        private static CompletableFuture<EventResult> sell(ProductsDataController controller, EventBus bus,
+                                                           Product product, int quantity,
+                                                           AtomicLongArray confirmed, int sku) {
+            int soldSoFar = controller.reserve(product, quantity);
+            if (soldSoFar < 0) {
+                return CompletableFuture.completedFuture(EventResult.OUT_OF_STOCK);
+            }
+            CompletableFuture<EventResult> result = new CompletableFuture<>();
+            EventObject event = new EventObject(product);
+            event.soldCount = soldSoFar;
+            event.quantity = quantity;
+            event.setOnResult(result::complete);
+            // done once every listener has it, the stand-in FX ones too, and Derby has answered
+            return bus.notify(EventType.SOLD, event).thenCombine(result, (handled, outcome) -> {
+                if (outcome == EventResult.BOUGHT) {
+                    confirmed.addAndGet(sku, quantity);
+                }
+                return outcome;
+            });
+        }
+
+        private static CompletableFuture<EventResult> add(EventBus bus, Product product) {
+            CompletableFuture<EventResult> result = new CompletableFuture<>();
+            EventObject event = new EventObject(product);
+            event.setOnResult(result::complete);
+            return bus.notify(EventType.ADDED, event).thenCombine(result, (stored, outcome) -> outcome);
+        }
+
+        /** Derby against what the run confirmed: every catalog product's sold count, and the added rows. */
+        private static boolean check(ProductsDataController controller, List<Product> catalog,
+                                     AtomicLongArray confirmed, String run, long added) {
+            Map<Integer, Product> stored = new HashMap<>();
+            int addedRows = 0;
+            for (Product product : controller.getProducts()) {
+                stored.put(product.getId(), product);
+                if (product.getName().startsWith("load-" + run + "-added-")) {
+                    addedRows++;
+                }
+            }
+            int mismatched = 0;
+            int viewMismatched = 0;
+            long sold = 0;
+            for (int i = 0; i < catalog.size(); i++) {
+                Product inDatabase = stored.get(catalog.get(i).getId());
+                int soldInDatabase = inDatabase == null ? -1 : inDatabase.getSoldCount();
+                sold += Math.max(0, soldInDatabase);
+                if (soldInDatabase != confirmed.get(i)) {
+                    mismatched++;
+                }
+                // the store listener only ever raises the shown count, so it should end where Derby did
+                if (UI && catalog.get(i).getSoldCount() != soldInDatabase) {
+                    viewMismatched++;
+                }
+            }
+            boolean consistent = mismatched == 0 && viewMismatched == 0 && addedRows == added;
+            System.out.printf("consistency: %,d units sold in Derby, %d products differ from confirmed sales%s, "
+                            + "%d of %d added rows found -> %s%n",
+                    sold, mismatched, UI ? ", " + viewMismatched + " from the store" : "", addedRows, added,
+                    consistent ? "OK" : "LOST OR PHANTOM UPDATES");
+            return consistent;
+        }
+
+        private static int pick(int[] weights, Random random) {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            int roll = random.nextInt(total);
+            for (int i = 0; i < weights.length; i++) {
+                roll -= weights[i];
+                if (roll < 0) {
+                    return i;
+                }
+            }
+            return weights.length - 1;
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.2f ms", nanos / 1e6);
+        }
+
+        /**
+         * Ranks drawn with probability proportional to 1 / rank^skew, by
+         * binary search over the cumulative distribution. Ranks are mapped to
+         * products through a fixed shuffle, so hot products are spread over
+         * the id range rather than all at its start.
+         */
+        static final class Zipf {
+
+            private final double[] cumulative;
+            private final int[] products;
+
+            Zipf(int size, double skew) {
+                cumulative = new double[size];
+                double sum = 0;
+                for (int rank = 0; rank < size; rank++) {
+                    sum += 1 / Math.pow(rank + 1, skew);
+                    cumulative[rank] = sum;
+                }
+                for (int rank = 0; rank < size; rank++) {
+                    cumulative[rank] /= sum;
+                }
+                List<Integer> shuffled = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    shuffled.add(i);
+                }
+                Collections.shuffle(shuffled, new Random(42));
+                products = shuffled.stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            int next(Random random) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+                // a miss gives -(insertion point) - 1: the first rank whose cumulative share is above the draw
+                rank = rank >= 0 ? rank : -rank - 1;
+                return products[Math.min(rank, products.length - 1)];
+            }
+        }
+    }
+
+    /**
+     * A product row. Counts are JavaFX properties so table cells repaint on
+     * their own when a value changes; mutate them on the FX thread only.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static class Product {
+
+        private volatile int id;
+        private final StringProperty name = new SimpleStringProperty(this, "name");
+        private final IntegerProperty originalCount = new SimpleIntegerProperty(this, "originalCount");
+        private final IntegerProperty soldCount = new SimpleIntegerProperty(this, "soldCount");
+        private final ReadOnlyIntegerWrapper inStoreCount = new ReadOnlyIntegerWrapper(this, "inStoreCount");
+
+        public Product() {
+            inStoreCount.bind(originalCount.subtract(soldCount));
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name.get();
+        }
+
+        public void setName(String name) {
+            this.name.set(name);
+        }
+
+        public StringProperty nameProperty() {
+            return name;
+        }
+
+        public int getOriginalCount() {
+            return originalCount.get();
+        }
+
+        public void setOriginalCount(int originalCount) {
+            this.originalCount.set(originalCount);
+        }
+
+        public IntegerProperty originalCountProperty() {
+            return originalCount;
+        }
+
+        public int getSoldCount() {
+            return soldCount.get();
+        }
+
+        public void setSoldCount(int soldCount) {
+            this.soldCount.set(soldCount);
+        }
+
+        public IntegerProperty soldCountProperty() {
+            return soldCount;
+        }
+
+        public int getInStoreCount() {
+            return inStoreCount.get();
+        }
+
+        public ReadOnlyIntegerProperty inStoreCountProperty() {
+            return inStoreCount.getReadOnlyProperty();
+        }
+
+        /** A detached snapshot of this product's current values. */
+        public Product copy() {
+            Product copy = new Product();
+            copy.setId(getId());
+            copy.setName(getName());
+            copy.setOriginalCount(getOriginalCount());
+            copy.setSoldCount(getSoldCount());
+            return copy;
+        }
+    }
+
+    /**
+     * The single list of products both tables project from. It is loaded
+     * once from Derby; each view wraps it in its own {@link SortedProductView},
+     * so every product exists exactly once in memory. With
+     * {@link Layout#COLUMNAR} the products are rows of a
+     * {@link ColumnarProductList} instead, and only those something holds on
+     * to exist as objects.
+     */
+    static class ProductStore {
+
+        /** How the products are held; {@code -Dproducts.store=columnar} picks the columns. */
+        enum Layout { OBJECTS, COLUMNAR }
+
+        private final ObservableList<Product> products;
+        private final ProductIndex index;
+        private final ProductSearch search;
+
+        private ProductStore(ColumnarProductList rows) {
+            this.products = rows;
+            this.index = new ColumnarProductIndex(rows);
+            this.search = new ProductSearch(rows);
+        }
+
+        static ProductStore empty(Layout layout) {
+            return layout == Layout.COLUMNAR ? new ProductStore(new ColumnarProductList())
+                    : new ProductStore(Collections.emptyList());
+        }
+
+        ProductStore(Collection<Product> loaded) {
+            // count changes surface as list updates, so sorted views re-place just that row
+            this.products = FXCollections.observableArrayList(product -> new Observable[] {
+                    product.originalCountProperty(), product.soldCountProperty()});
+            this.products.addAll(loaded);
+            this.index = new ProductIndex(products);
+            this.search = new ProductSearch(products);
+        }
+
+        ObservableList<Product> products() {
+            return products;
+        }
+
+        ProductIndex index() {
+            return index;
+        }
+
+        ProductSearch search() {
+            return search;
+        }
+
+        Product find(String name) {
+            return index.find(name);
+        }
+
+        void add(Product product) {
+            products.add(product);
+        }
+
+        void addAll(Collection<Product> loaded) {
+            products.addAll(loaded);
+        }
+
+        /** A table's view of the products in {@code sort} order, sorted on {@code sorter}. */
+        SortedProducts sorted(ProductSort sort, Executor sorter, Executor fxExecutor) {
+            if (products instanceof ColumnarProductList) {
+                return new ColumnarSortedView((ColumnarProductList) products, sort, sorter, fxExecutor);
+            }
+            return new SortedProductView(products, sort, sorter, fxExecutor);
+        }
+    }
+
+    /** A table's rows in {@link ProductSort} order, kept in order as they change. */
+    interface SortedProducts extends ObservableList<Product> {
+
+        /**
+         * Re-orders the rows by {@code sort}; call on the FX thread. The
+         * future completes once they show in this order, or one asked for later.
+         */
+        CompletableFuture<Void> sortBy(ProductSort sort);
+    }
+
+    /**
+     * A table's rows in {@link ProductSort} order, over the store's list. It
+     * stands in for a {@link javafx.collections.transformation.SortedList},
+     * which re-sorts the whole list on the FX thread whenever its comparator
+     * changes. Here the FX thread only copies each row's sort
+     * {@link ProductSort.Values}; they are sorted on {@code sorter}, and the
+     * new order is swapped in as one change. Until then the table keeps its
+     * old order, and rows added or sold meanwhile are placed again once the
+     * new order lands. Between sorts, rows are placed by binary search as
+     * they come and as they sell. Use it from the thread that owns the store.
+     */
+    static class SortedProductView extends TransformationList<Product, Product> implements SortedProducts {
+
+        private static final LatencyHistogram COPY_TIMER = Metrics.timer("fx.sort.copy");
+        private static final LatencyHistogram SORT_TIMER = Metrics.timer("sort.background");
+        private static final LatencyHistogram SWAP_TIMER = Metrics.timer("fx.sort.swap");
+        // more rows than this at once are merged in with one pass instead of placed one by one
+        private static final int MERGE_ABOVE = 32;
+
+        private final Executor sorter;
+        private final Executor fxExecutor;
+        private List<Product> rows;
+        private ProductSort sort;
+        private Comparator<Product> comparator;
+        private ProductSort requested;
+        private CompletableFuture<Void> requestedShown;
+        private Sorting sorting;
+
+        SortedProductView(ObservableList<Product> source, ProductSort sort, Executor sorter, Executor fxExecutor) {
+            super(source);
+            this.sorter = sorter;
+            this.fxExecutor = fxExecutor;
+            this.sort = sort;
+            this.comparator = sort.comparator();
+            this.rows = new ArrayList<>(source);
+            rows.sort(comparator);
+        }
+
+        /**
+         * Re-orders the view by {@code newSort}; call on the FX thread. Calls
+         * made before the values are copied fold into one. The future
+         * completes once the view shows this order, or one asked for later.
+         */
+        @Override
+        public CompletableFuture<Void> sortBy(ProductSort newSort) {
+            if (requestedShown == null && sorting == null && newSort.equals(sort)) {
+                // rows are kept in order as they change, so there is nothing to do
+                return CompletableFuture.completedFuture(null);
+            }
+            requested = newSort;
+            if (requestedShown != null) {
+                return requestedShown;
+            }
+            CompletableFuture<Void> shown = new CompletableFuture<>();
+            requestedShown = shown;
+            fxExecutor.execute(this::startSorting);
+            return shown;
+        }
+
+        private void startSorting() {
+            long start = System.nanoTime();
+            ProductSort.Values[] values = new ProductSort.Values[getSource().size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new ProductSort.Values(getSource().get(i));
+            }
+            Sorting next = new Sorting(requested, values, requestedShown);
+            requested = null;
+            requestedShown = null;
+            if (sorting != null) {
+                // overtaken; its caller waits for this one instead
+                CompletableFuture<Void> overtaken = sorting.shown;
+                next.shown.whenComplete((ignored, failure) -> overtaken.complete(null));
+            }
+            sorting = next;
+            COPY_TIMER.recordSince(start);
+            CompletableFuture.runAsync(next::sort, sorter)
+                    .whenCompleteAsync((ignored, failure) -> {
+                        if (failure != null) {
+                            if (sorting == next) {
+                                sorting = null;
+                            }
+                            next.shown.completeExceptionally(failure);
+                        } else {
+                            swapIn(next);
+                        }
+                    }, fxExecutor);
+        }
+
+        private void swapIn(Sorting done) {
+            if (done != sorting) {
+                return;
+            }
+            long start = System.nanoTime();
+            sorting = null;
+            Set<Product> present = done.removed ? new HashSet<>(getSource()) : null;
+            List<Product> sorted = new ArrayList<>(getSource().size());
+            List<Product> replaced = new ArrayList<>(done.changed.size());
+            for (ProductSort.Values values : done.values) {
+                if (!done.changed.contains(values.product) && (present == null || present.contains(values.product))) {
+                    sorted.add(values.product);
+                }
+            }
+            for (Product product : done.changed) {
+                if (present == null || present.contains(product)) {
+                    replaced.add(product);
+                }
+            }
+            sort = done.sort;
+            comparator = sort.comparator();
+            List<Product> shown = rows;
+            rows = sorted;
+            // the changed rows' copied values were stale, so they are placed by their current ones
+            rows = merge(replaced, false);
+            beginChange();
+            nextReplace(0, rows.size(), shown);
+            endChange();
+            SWAP_TIMER.recordSince(start);
+            done.shown.complete(null);
+        }
+
+        @Override
+        protected void sourceChanged(ListChangeListener.Change<? extends Product> change) {
+            beginChange();
+            while (change.next()) {
+                if (change.wasPermutated()) {
+                    // the view keeps its own order
+                    continue;
+                }
+                if (change.wasUpdated()) {
+                    for (int i = change.getFrom(); i < change.getTo(); i++) {
+                        replace(change.getList().get(i));
+                    }
+                    continue;
+                }
+                if (change.wasRemoved()) {
+                    remove(change.getRemoved());
+                }
+                if (change.wasAdded()) {
+                    add(change.getAddedSubList());
+                }
+            }
+            endChange();
+        }
+
+        private void add(List<? extends Product> added) {
+            if (sorting != null) {
+                sorting.changed.addAll(added);
+            }
+            if (added.size() > MERGE_ABOVE) {
+                rows = merge(added, true);
+                return;
+            }
+            for (Product product : added) {
+                int index = insertionPoint(product);
+                rows.add(index, product);
+                nextAdd(index, index + 1);
+            }
+        }
+
+        // one pass over the rows; reports each new row where it lands when told to
+        private List<Product> merge(List<? extends Product> added, boolean report) {
+            List<Product> incoming = new ArrayList<>(added);
+            incoming.sort(comparator);
+            List<Product> merged = new ArrayList<>(rows.size() + incoming.size());
+            int next = 0;
+            for (Product product : incoming) {
+                while (next < rows.size() && comparator.compare(rows.get(next), product) <= 0) {
+                    merged.add(rows.get(next++));
+                }
+                if (report) {
+                    nextAdd(merged.size(), merged.size() + 1);
+                }
+                merged.add(product);
+            }
+            merged.addAll(rows.subList(next, rows.size()));
+            return merged;
+        }
+
+        private void remove(List<? extends Product> removed) {
+            if (sorting != null) {
+                sorting.removed = true;
+            }
+            if (getSource().isEmpty()) {
+                List<Product> shown = rows;
+                rows = new ArrayList<>();
+                nextRemove(0, shown);
+                return;
+            }
+            Set<Product> gone = new HashSet<>(removed);
+            int kept = 0;
+            for (int i = 0; i < rows.size(); i++) {
+                Product product = rows.get(i);
+                if (gone.contains(product)) {
+                    nextRemove(kept, product);
+                } else {
+                    rows.set(kept++, product);
+                }
+            }
+            rows.subList(kept, rows.size()).clear();
+        }
+
+        // a row whose sort values changed: left where it is if it still fits, else moved
+        private void replace(Product product) {
+            if (sorting != null) {
+                sorting.changed.add(product);
+            }
+            int from = indexOf(product);
+            if (from < 0) {
+                return;
+            }
+            boolean fits = (from == 0 || comparator.compare(rows.get(from - 1), product) <= 0)
+                    && (from == rows.size() - 1 || comparator.compare(product, rows.get(from + 1)) <= 0);
+            if (fits) {
+                nextUpdate(from);
+                return;
+            }
+            rows.remove(from);
+            int to = insertionPoint(product);
+            rows.add(to, product);
+            int low = Math.min(from, to);
+            int high = Math.max(from, to) + 1;
+            int[] permutation = new int[high - low];
+            for (int i = low; i < high; i++) {
+                permutation[i - low] = i == from ? to : from < to ? i - 1 : i + 1;
+            }
+            nextPermutation(low, high, permutation);
+            nextUpdate(to);
+        }
+
+        private int indexOf(Product product) {
+            int index = Collections.binarySearch(rows, product, comparator);
+            if (index >= 0 && rows.get(index) == product) {
+                return index;
+            }
+            // its values changed since it was placed, so they no longer say where it is
+            for (index = 0; index < rows.size(); index++) {
+                if (rows.get(index) == product) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private int insertionPoint(Product product) {
+            int index = Collections.binarySearch(rows, product, comparator);
+            return index < 0 ? -index - 1 : index;
+        }
+
+        @Override
+        public Product get(int index) {
+            return rows.get(index);
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+
+        // linear, but nothing on a hot path asks
+        @Override
+        public int getSourceIndex(int index) {
+            return getSource().indexOf(rows.get(index));
+        }
+
+        @Override
+        public int getViewIndex(int index) {
+            return rows.indexOf(getSource().get(index));
+        }
+
+        /** A sort in flight: the copied values, sorted off the FX thread, and what changed since the copy. */
+        private static final class Sorting {
+            final ProductSort sort;
+            final ProductSort.Values[] values;
+            final CompletableFuture<Void> shown;
+            final Set<Product> changed = new HashSet<>();
+            boolean removed;
+
+            Sorting(ProductSort sort, ProductSort.Values[] values, CompletableFuture<Void> shown) {
+                this.sort = sort;
+                this.values = values;
+                this.shown = shown;
+            }
+
+            void sort() {
+                long start = System.nanoTime();
+                Arrays.parallelSort(values, sort.valuesComparator());
+                SORT_TIMER.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Products stored column-wise for very large catalogs: ids and counts in
+     * parallel {@code int[]}s, names as UTF-8 in one shared byte array, and
+     * open-addressing indexes from name and from id to row number. A row
+     * costs a few dozen bytes instead of a {@link Product} and its
+     * properties. Rows are only appended. Like an {@link ObservableList}, use
+     * it from one thread; a {@link #snapshot()} may then be read on another.
+     */
+    static class ColumnarProductStore {
+
+        private static final int EMPTY = -1;
+
+        private int size;
+        private int[] ids;
+        private int[] originalCounts;
+        private int[] soldCounts;
+        private int[] keyHashes;
+        // row r's name is names[nameOffsets[r] .. nameOffsets[r + 1])
+        private int[] nameOffsets;
+        private byte[] names;
+        private int[] slots;
+        private int[] idSlots;
+
+        ColumnarProductStore(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            ids = new int[capacity];
+            originalCounts = new int[capacity];
+            soldCounts = new int[capacity];
+            keyHashes = new int[capacity];
+            nameOffsets = new int[capacity + 1];
+            names = new byte[capacity * 16];
+            slots = new int[tableSizeFor(capacity)];
+            idSlots = new int[slots.length];
+            Arrays.fill(slots, EMPTY);
+            Arrays.fill(idSlots, EMPTY);
+        }
+
+        // a read-only copy: counts and ids may still change, names never do once written
+        private ColumnarProductStore(ColumnarProductStore rows) {
+            size = rows.size;
+            ids = Arrays.copyOf(rows.ids, size);
+            originalCounts = Arrays.copyOf(rows.originalCounts, size);
+            soldCounts = Arrays.copyOf(rows.soldCounts, size);
+            nameOffsets = rows.nameOffsets;
+            names = rows.names;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * The rows as they are now, for reading on another thread while this
+         * store carries on. It cannot look rows up or take new ones.
+         */
+        ColumnarProductStore snapshot() {
+            return new ColumnarProductStore(this);
+        }
+
+        /** Appends a product and returns its row, or -1 if the name is already taken. */
+        int add(int id, String name, int originalCount, int soldCount) {
+            String key = ProductIndex.key(name);
+            if (find(key, key.hashCode()) != EMPTY) {
+                return -1;
+            }
+            if (size == ids.length) {
+                growRows();
+            }
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            int start = nameOffsets[size];
+            if (start + encoded.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, start + encoded.length));
+            }
+            System.arraycopy(encoded, 0, names, start, encoded.length);
+
+            int row = size++;
+            nameOffsets[size] = start + encoded.length;
+            ids[row] = id;
+            originalCounts[row] = originalCount;
+            soldCounts[row] = soldCount;
+            keyHashes[row] = key.hashCode();
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            } else {
+                insertSlot(row);
+                insertIdSlot(row);
+            }
+            return row;
+        }
+
+        /** Case-insensitive, like {@link ProductIndex}; returns the row or -1. */
+        int find(String name) {
+            String key = ProductIndex.key(name);
+            return find(key, key.hashCode());
+        }
+
+        private int find(String key, int hash) {
+            int mask = slots.length - 1;
+            for (int slot = spread(hash) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+                int row = slots[slot];
+                // the name is only decoded when the hashes already agree
+                if (keyHashes[row] == hash && ProductIndex.key(name(row)).equals(key)) {
+                    return row;
+                }
+            }
+            return EMPTY;
+        }
+
+        /** The row holding Derby id {@code id}, or -1. */
+        int findById(int id) {
+            if (id == 0) {
+                return EMPTY;
+            }
+            int mask = idSlots.length - 1;
+            for (int slot = spread(id) & mask; idSlots[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (ids[idSlots[slot]] == id) {
+                    return idSlots[slot];
+                }
+            }
+            return EMPTY;
+        }
+
+        int id(int row) {
+            return ids[row];
+        }
+
+        /** For a row added before Derby gave it an id. */
+        void setId(int row, int id) {
+            if (ids[row] == 0 && id != 0) {
+                ids[row] = id;
+                insertIdSlot(row);
+            }
+        }
+
+        String name(int row) {
+            int start = nameOffsets[row];
+            return new String(names, start, nameOffsets[row + 1] - start, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Orders two rows by name. UTF-8 bytes compared unsigned follow code
+         * points, which is {@link String#compareTo} but for characters
+         * outside the Basic Multilingual Plane.
+         */
+        int compareNames(int a, int b) {
+            int i = nameOffsets[a];
+            int j = nameOffsets[b];
+            int endA = nameOffsets[a + 1];
+            int endB = nameOffsets[b + 1];
+            for (; i < endA && j < endB; i++, j++) {
+                if (names[i] != names[j]) {
+                    return (names[i] & 0xFF) - (names[j] & 0xFF);
+                }
+            }
+            return (endA - nameOffsets[a]) - (endB - nameOffsets[b]);
+        }
+
+        int originalCount(int row) {
+            return originalCounts[row];
+        }
+
+        void setOriginalCount(int row, int originalCount) {
+            originalCounts[row] = originalCount;
+        }
+
+        int soldCount(int row) {
+            return soldCounts[row];
+        }
+
+        int inStoreCount(int row) {
+            return originalCounts[row] - soldCounts[row];
+        }
+
+        void setSoldCount(int row, int soldCount) {
+            soldCounts[row] = soldCount;
+        }
+
+        private void growRows() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            originalCounts = Arrays.copyOf(originalCounts, capacity);
+            soldCounts = Arrays.copyOf(soldCounts, capacity);
+            keyHashes = Arrays.copyOf(keyHashes, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+
+        private void rehash(int tableSize) {
+            slots = new int[tableSize];
+            idSlots = new int[tableSize];
+            Arrays.fill(slots, EMPTY);
+            Arrays.fill(idSlots, EMPTY);
+            for (int row = 0; row < size; row++) {
+                insertSlot(row);
+                insertIdSlot(row);
+            }
+        }
+
+        private void insertSlot(int row) {
+            slots[freeSlot(slots, keyHashes[row])] = row;
+        }
+
+        private void insertIdSlot(int row) {
+            if (ids[row] != 0) {
+                idSlots[freeSlot(idSlots, ids[row])] = row;
+            }
+        }
+
+        private static int freeSlot(int[] table, int hash) {
+            int mask = table.length - 1;
+            int slot = spread(hash) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // keeps the load factor at or below one half
+        private static int tableSizeFor(int rows) {
+            return Integer.highestOneBit(Math.max(rows * 2 - 1, 1)) << 1;
+        }
+
+        private static int spread(int hash) {
+            int h = hash * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The list a {@link ProductStore} built with {@link ProductStore.Layout#COLUMNAR}
+     * hands out, over a {@link ColumnarProductStore}. {@link #get(int)} makes
+     * a {@link Product} view of the row. A view lives only while something
+     * holds it, and until then the row gives back the same view, so tables
+     * keep just the rows on screen as objects. Count changes made on a view
+     * are written to the columns and reported as an update of its row.
+     * Rows are appended, where a name already present is skipped, or all
+     * cleared; nothing else changes the list.
+     */
+    static class ColumnarProductList extends ObservableListBase<Product> {
+
+        // clear() hands the removed rows to listeners as products, this many at a time
+        private static final int CLEAR_CHUNK = 10_000;
+
+        private final ReferenceQueue<Product> collected = new ReferenceQueue<>();
+        private ColumnarProductStore store = new ColumnarProductStore(16);
+        // a slot per row, emptied again once its view has been collected
+        private ViewReference[] views = new ViewReference[16];
+        private int size;
+
+        ColumnarProductStore store() {
+            return store;
+        }
+
+        @Override
+        public Product get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("row " + index + " of " + size);
+            }
+            expunge();
+            Product view = views[index] == null ? null : views[index].get();
+            if (view == null) {
+                view = view(store, index);
+                views[index] = new ViewReference(view, index, collected);
+            }
+            return view;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean add(Product product) {
+            return addAll(Collections.singletonList(product));
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Product> products) {
+            int from = store.size();
+            for (Product product : products) {
+                store.add(product.getId(), product.getName(), product.getOriginalCount(), product.getSoldCount());
+            }
+            if (store.size() == from) {
+                return false;
+            }
+            size = store.size();
+            if (size > views.length) {
+                views = Arrays.copyOf(views, Math.max(size, views.length * 2));
+            }
+            beginChange();
+            nextAdd(from, size);
+            endChange();
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            ColumnarProductStore cleared = store;
+            // the whole catalog as products at once is what this list exists to avoid
+            while (size > 0) {
+                int from = Math.max(0, size - CLEAR_CHUNK);
+                List<Product> removed = new ArrayList<>(size - from);
+                for (int row = from; row < size; row++) {
+                    removed.add(detached(cleared, row));
+                }
+                size = from;
+                beginChange();
+                nextRemove(from, removed);
+                endChange();
+            }
+            store = new ColumnarProductStore(16);
+            views = new ViewReference[16];
+        }
+
+        /** Finds a product by name, ignoring case. */
+        Product find(String name) {
+            int row = store.find(name);
+            return row < 0 ? null : get(row);
+        }
+
+        Product findById(int id) {
+            int row = store.findById(id);
+            return row < 0 ? null : get(row);
+        }
+
+        /** Records the id Derby gave a product after it was added. */
+        void idAssigned(Product product) {
+            int row = store.find(product.getName());
+            if (row < 0 || product.getId() == 0) {
+                return;
+            }
+            store.setId(row, product.getId());
+            Product view = views[row] == null ? null : views[row].get();
+            if (view != null) {
+                view.setId(product.getId());
+            }
+        }
+
+        private Product view(ColumnarProductStore columns, int row) {
+            Product product = detached(columns, row);
+            // a view still held after clear() belongs to the old columns and writes nowhere
+            product.originalCountProperty().addListener((observable, oldValue, newValue) -> {
+                if (columns == store) {
+                    columns.setOriginalCount(row, newValue.intValue());
+                    updated(row);
+                }
+            });
+            product.soldCountProperty().addListener((observable, oldValue, newValue) -> {
+                if (columns == store) {
+                    columns.setSoldCount(row, newValue.intValue());
+                    updated(row);
+                }
+            });
+            return product;
+        }
+
+        private void updated(int row) {
+            beginChange();
+            nextUpdate(row);
+            endChange();
+        }
+
+        private static Product detached(ColumnarProductStore columns, int row) {
+            Product product = new Product();
+            product.setId(columns.id(row));
+            product.setName(columns.name(row));
+            product.setOriginalCount(columns.originalCount(row));
+            product.setSoldCount(columns.soldCount(row));
+            return product;
+        }
+
+        private void expunge() {
+            for (Reference<? extends Product> gone = collected.poll(); gone != null; gone = collected.poll()) {
+                int row = ((ViewReference) gone).row;
+                if (row < views.length && views[row] == gone) {
+                    views[row] = null;
+                }
+            }
+        }
+
+        private static final class ViewReference extends WeakReference<Product> {
+            final int row;
+
+            ViewReference(Product view, int row, ReferenceQueue<Product> queue) {
+                super(view, queue);
+                this.row = row;
+            }
+        }
+    }
+
+    /**
+     * {@link ProductIndex} for a {@link ColumnarProductList}: the columns are
+     * indexed already, so lookups go there and return the row's view. Use it
+     * from the thread that owns the store.
+     */
+    static class ColumnarProductIndex extends ProductIndex {
+
+        private final ColumnarProductList rows;
+
+        ColumnarProductIndex(ColumnarProductList rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        Product find(String name) {
+            return rows.find(name);
+        }
+
+        @Override
+        Product findById(int id) {
+            return rows.findById(id);
+        }
+
+        @Override
+        void idAssigned(Product product) {
+            rows.idAssigned(product);
+        }
+    }
+
+    /**
+     * {@link SortedProductView} for a {@link ColumnarProductList}: the view
+     * is an {@code int[]} of row numbers, so the table's order costs four
+     * bytes a row and touches no {@link Product}. A new order is sorted on
+     * {@code sorter} over a {@link ColumnarProductStore#snapshot()} and lands
+     * as one permutation; rows that sold or arrived in the meantime are
+     * placed again by their current values. Between sorts, rows are placed
+     * by binary search. Use it from the thread that owns the store.
+     */
+    static class ColumnarSortedView extends TransformationList<Product, Product> implements SortedProducts {
+
+        private static final LatencyHistogram COPY_TIMER = Metrics.timer("fx.columnarSort.copy");
+        private static final LatencyHistogram SORT_TIMER = Metrics.timer("sort.columnar");
+        private static final LatencyHistogram SWAP_TIMER = Metrics.timer("fx.columnarSort.swap");
+        // more rows than this at once are merged in with one pass instead of placed one by one
+        private static final int MERGE_ABOVE = 32;
+        private static final int INSERTION_SORT_RUN = 32;
+
+        private final ColumnarProductList source;
+        private final Executor sorter;
+        private final Executor fxExecutor;
+        // view index to row, and row to view index
+        private int[] order;
+        private int[] positions;
+        private int size;
+        private ProductSort sort;
+        private IntBinaryOperator comparator;
+        private ColumnarProductStore compared;
+        private ProductSort requested;
+        private CompletableFuture<Void> requestedShown;
+        private Sorting sorting;
+
+        ColumnarSortedView(ColumnarProductList source, ProductSort sort, Executor sorter, Executor fxExecutor) {
+            super(source);
+            this.source = source;
+            this.sorter = sorter;
+            this.fxExecutor = fxExecutor;
+            this.sort = sort;
+            this.size = source.size();
+            this.order = allRows(size);
+            this.positions = new int[Math.max(16, size)];
+            sortRows(order, size, comparator());
+            placeAll();
+        }
+
+        @Override
+        public CompletableFuture<Void> sortBy(ProductSort newSort) {
+            if (requestedShown == null && sorting == null && newSort.equals(sort)) {
+                // rows are kept in order as they change, so there is nothing to do
+                return CompletableFuture.completedFuture(null);
+            }
+            requested = newSort;
+            if (requestedShown != null) {
+                return requestedShown;
+            }
+            CompletableFuture<Void> shown = new CompletableFuture<>();
+            requestedShown = shown;
+            fxExecutor.execute(this::startSorting);
+            return shown;
+        }
+
+        private void startSorting() {
+            long start = System.nanoTime();
+            Sorting next = new Sorting(requested, source.store().snapshot(), requestedShown);
+            requested = null;
+            requestedShown = null;
+            if (sorting != null) {
+                CompletableFuture<Void> overtaken = sorting.shown;
+                next.shown.whenComplete((ignored, failure) -> overtaken.complete(null));
+            }
+            sorting = next;
+            COPY_TIMER.recordSince(start);
+            CompletableFuture.runAsync(next::sort, sorter)
+                    .whenCompleteAsync((ignored, failure) -> {
+                        if (failure != null) {
+                            if (sorting == next) {
+                                sorting = null;
+                            }
+                            next.shown.completeExceptionally(failure);
+                        } else {
+                            swapIn(next);
+                        }
+                    }, fxExecutor);
+        }
+
+        private void swapIn(Sorting done) {
+            if (done != sorting) {
+                return;
+            }
+            long start = System.nanoTime();
+            sorting = null;
+            sort = done.sort;
+            compared = null;
+            IntBinaryOperator current = comparator();
+            int[] sorted;
+            if (done.cleared) {
+                // the rows it sorted are gone, and their numbers may be in use again
+                sorted = allRows(size);
+                sortRows(sorted, size, current);
+            } else {
+                // rows that changed or arrived since the copy are placed by their current values
+                int copied = done.columns.size();
+                int[] kept = new int[copied];
+                int keptCount = 0;
+                for (int row : done.rows) {
+                    if (!done.changed.get(row)) {
+                        kept[keptCount++] = row;
+                    }
+                }
+                int[] moved = new int[size - keptCount];
+                int movedCount = 0;
+                for (int row = done.changed.nextSetBit(0); row >= 0 && row < copied;
+                     row = done.changed.nextSetBit(row + 1)) {
+                    moved[movedCount++] = row;
+                }
+                for (int row = copied; row < size; row++) {
+                    moved[movedCount++] = row;
+                }
+                sortRows(moved, movedCount, current);
+                sorted = new int[Math.max(16, size)];
+                merge(kept, keptCount, moved, movedCount, sorted, current);
+            }
+            // the same rows in a new order, which a table takes as a permutation
+            int[] shown = order;
+            order = sorted;
+            placeAll();
+            int[] permutation = new int[size];
+            for (int i = 0; i < size; i++) {
+                permutation[i] = positions[shown[i]];
+            }
+            beginChange();
+            nextPermutation(0, size, permutation);
+            endChange();
+            SWAP_TIMER.recordSince(start);
+            done.shown.complete(null);
+        }
+
+        @Override
+        protected void sourceChanged(ListChangeListener.Change<? extends Product> change) {
+            beginChange();
+            while (change.next()) {
+                if (change.wasPermutated()) {
+                    continue;
+                }
+                if (change.wasUpdated()) {
+                    for (int row = change.getFrom(); row < change.getTo(); row++) {
+                        replace(row);
+                    }
+                    continue;
+                }
+                if (change.wasRemoved()) {
+                    remove(change.getFrom(), change.getRemoved());
+                }
+                if (change.wasAdded()) {
+                    add(change.getFrom(), change.getTo());
+                }
+            }
+            endChange();
+        }
+
+        // rows are appended, so the new ones are from .. to
+        private void add(int from, int to) {
+            ensureCapacity(size + to - from);
+            IntBinaryOperator current = comparator();
+            if (to - from > MERGE_ABOVE) {
+                int[] added = new int[to - from];
+                for (int row = from; row < to; row++) {
+                    added[row - from] = row;
+                }
+                sortRows(added, added.length, current);
+                int[] merged = new int[order.length];
+                int next = 0;
+                int count = 0;
+                for (int row : added) {
+                    while (next < size && current.applyAsInt(order[next], row) <= 0) {
+                        merged[count++] = order[next++];
+                    }
+                    nextAdd(count, count + 1);
+                    merged[count++] = row;
+                }
+                System.arraycopy(order, next, merged, count, size - next);
+                order = merged;
+                size += added.length;
+                placeAll();
+                return;
+            }
+            for (int row = from; row < to; row++) {
+                int index = insertionPoint(row, current);
+                System.arraycopy(order, index, order, index + 1, size - index);
+                order[index] = row;
+                size++;
+                place(index, size);
+                nextAdd(index, index + 1);
+            }
+        }
+
+        // clear() takes rows off the end, so every row from {@code from} up is gone
+        private void remove(int from, List<? extends Product> removed) {
+            if (sorting != null) {
+                sorting.cleared = true;
+            }
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int row = order[i];
+                if (row >= from) {
+                    nextRemove(kept, removed.get(row - from));
+                } else {
+                    order[kept] = row;
+                    positions[row] = kept++;
+                }
+            }
+            size = kept;
+        }
+
+        // a row whose sort values changed: left where it is if it still fits, else moved
+        private void replace(int row) {
+            if (sorting != null) {
+                sorting.changed.set(row);
+            }
+            IntBinaryOperator current = comparator();
+            int from = positions[row];
+            boolean fits = (from == 0 || current.applyAsInt(order[from - 1], row) <= 0)
+                    && (from == size - 1 || current.applyAsInt(row, order[from + 1]) <= 0);
+            if (fits) {
+                nextUpdate(from);
+                return;
+            }
+            System.arraycopy(order, from + 1, order, from, size - from - 1);
+            size--;
+            int to = insertionPoint(row, current);
+            System.arraycopy(order, to, order, to + 1, size - to);
+            order[to] = row;
+            size++;
+            int low = Math.min(from, to);
+            int high = Math.max(from, to) + 1;
+            place(low, high);
+            int[] permutation = new int[high - low];
+            for (int i = low; i < high; i++) {
+                permutation[i - low] = i == from ? to : from < to ? i - 1 : i + 1;
+            }
+            nextPermutation(low, high, permutation);
+            nextUpdate(to);
+        }
+
+        private int insertionPoint(int row, IntBinaryOperator current) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (current.applyAsInt(order[middle], row) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        // clear() swaps in new columns, so the comparator follows the list's
+        private IntBinaryOperator comparator() {
+            if (compared != source.store()) {
+                compared = source.store();
+                comparator = sort.rowComparator(compared);
+            }
+            return comparator;
+        }
+
+        private void ensureCapacity(int rows) {
+            if (rows > order.length) {
+                order = Arrays.copyOf(order, Math.max(rows, order.length * 2));
+            }
+            if (rows > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(rows, positions.length * 2));
+            }
+        }
+
+        private void placeAll() {
+            ensureCapacity(size);
+            place(0, size);
+        }
+
+        private void place(int from, int to) {
+            for (int i = from; i < to; i++) {
+                positions[order[i]] = i;
+            }
+        }
+
+        @Override
+        public Product get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("row " + index + " of " + size);
+            }
+            return source.get(order[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int getSourceIndex(int index) {
+            return order[index];
+        }
+
+        @Override
+        public int getViewIndex(int index) {
+            return positions[index];
+        }
+
+        private static int[] allRows(int count) {
+            int[] rows = new int[Math.max(16, count)];
+            for (int row = 0; row < count; row++) {
+                rows[row] = row;
+            }
+            return rows;
+        }
+
+        /** Sorts the first {@code count} row numbers; stable, as there is no {@code int[]} sort taking a comparator. */
+        static void sortRows(int[] rows, int count, IntBinaryOperator comparator) {
+            for (int from = 0; from < count; from += INSERTION_SORT_RUN) {
+                int to = Math.min(count, from + INSERTION_SORT_RUN);
+                for (int i = from + 1; i < to; i++) {
+                    int row = rows[i];
+                    int j = i - 1;
+                    for (; j >= from && comparator.applyAsInt(rows[j], row) > 0; j--) {
+                        rows[j + 1] = rows[j];
+                    }
+                    rows[j + 1] = row;
+                }
+            }
+            if (count <= INSERTION_SORT_RUN) {
+                return;
+            }
+            int[] from = rows;
+            int[] to = new int[count];
+            for (int width = INSERTION_SORT_RUN; width < count; width *= 2) {
+                for (int low = 0; low < count; low += 2 * width) {
+                    int middle = Math.min(count, low + width);
+                    int high = Math.min(count, low + 2 * width);
+                    int i = low;
+                    int j = middle;
+                    for (int k = low; k < high; k++) {
+                        to[k] = j >= high || i < middle && comparator.applyAsInt(from[i], from[j]) <= 0
+                                ? from[i++] : from[j++];
+                    }
+                }
+                int[] swap = from;
+                from = to;
+                to = swap;
+            }
+            if (from != rows) {
+                System.arraycopy(from, 0, rows, 0, count);
+            }
+        }
+
+        private static void merge(int[] a, int aCount, int[] b, int bCount, int[] into, IntBinaryOperator comparator) {
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < aCount + bCount; k++) {
+                into[k] = j >= bCount || i < aCount && comparator.applyAsInt(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+            }
+        }
+
+        /** A sort in flight: the copied columns, their rows once sorted, and which rows changed since the copy. */
+        private static final class Sorting {
+            final ProductSort sort;
+            final ColumnarProductStore columns;
+            final CompletableFuture<Void> shown;
+            final BitSet changed = new BitSet();
+            int[] rows;
+            boolean cleared;
+
+            Sorting(ProductSort sort, ColumnarProductStore columns, CompletableFuture<Void> shown) {
+                this.sort = sort;
+                this.columns = columns;
+                this.shown = shown;
+            }
+
+            void sort() {
+                long start = System.nanoTime();
+                int[] sorted = allRows(columns.size());
+                sortRows(sorted, columns.size(), sort.rowComparator(columns));
+                rows = Arrays.copyOf(sorted, columns.size());
+                SORT_TIMER.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Fills a {@link ProductStore} a page at a time using keyset pagination
+     * on id, so the window can show as soon as the first page is in. In
+     * {@code STREAM} mode the remaining pages follow on a background thread;
+     * in {@code LAZY} mode the next page is only fetched when a table is
+     * scrolled near its end. {@code EAGER} reads everything up front.
+     */
+    static class ProductLoader {
+
+        enum Mode { EAGER, STREAM, LAZY }
+
+        private static final double SCROLL_THRESHOLD = 0.9;
+
+        private final ProductsDataController controller;
+        private final ProductStore store;
+        private final Executor fxExecutor;
+        private final Mode mode;
+        private final int pageSize;
+        private final ExecutorService loaderThread =
+                Executors.newSingleThreadExecutor(daemonThreads("products-loader"));
+        // apart from the loader, which may be busy streaming pages for a while
+        private final ExecutorService searchThread =
+                Executors.newSingleThreadExecutor(daemonThreads("products-search"));
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private ProductSort sort = ProductSort.BY_ID;
+        private Product cursor;
+        // the loader has fetched the last page; it may not have reached the store yet
+        private volatile boolean fetchedAll;
+        // every product is in the store: the last page has been applied on the FX thread
+        private volatile boolean exhausted;
+
+        ProductLoader(ProductsDataController controller, ProductStore store,
+                      Executor fxExecutor, Mode mode, int pageSize) {
+            this.controller = controller;
+            this.store = store;
+            this.fxExecutor = fxExecutor;
+            this.mode = mode;
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * Fetches the first page, or in {@code EAGER} mode every product, on
+         * the loader thread and adds it to the store on the FX thread.
+         */
+        void loadFirstPage() {
+            loaderThread.execute(() -> {
+                List<Product> everything = mode == Mode.EAGER ? controller.getProducts() : null;
+                if (everything != null) {
+                    fetchedAll = true;
+                }
+                // a failed EAGER read falls back to paging, with loadRemaining fetching the rest
+                List<Product> page = everything != null ? everything : fetchPage();
+                boolean last = fetchedAll;
+                fxExecutor.execute(() -> apply(page, last));
+            });
+        }
+
+        /** For a store already holding every product, as from a complete {@link CatalogSnapshot}. */
+        void markLoaded() {
+            fetchedAll = true;
+            exhausted = true;
+        }
+
+        /** True once every product is in the store. Lazy mode only gets there by scrolling to the end. */
+        boolean loadedAll() {
+            return exhausted;
+        }
+
+        void loadRemaining() {
+            loaderThread.execute(() -> {
+                while (!fetchedAll) {
+                    List<Product> page = fetchPage();
+                    boolean last = fetchedAll;
+                    CompletableFuture<Void> applied = new CompletableFuture<>();
+                    fxExecutor.execute(() -> {
+                        apply(page, last);
+                        applied.complete(null);
+                    });
+                    // keeps at most one page in flight so the FX queue never floods
+                    applied.join();
+                }
+            });
+        }
+
+        void loadOnScroll(TableView<Product> table) {
+            for (Node node : table.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                    ScrollBar scrollBar = (ScrollBar) node;
+                    scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                        if (newValue.doubleValue() >= scrollBar.getMax() * SCROLL_THRESHOLD) {
+                            loadNextPage();
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Hands {@code onFound} the product with this name, or null. While
+         * its page may not have been fetched yet, Derby is asked on the
+         * search thread. Call on the FX thread; {@code onFound} runs there.
+         */
+        void find(String name, Consumer<Product> onFound) {
+            Product product = store.find(name);
+            if (product != null || exhausted) {
+                onFound.accept(product);
+                return;
+            }
+            searchThread.execute(() -> {
+                Product stored = controller.findProduct(name);
+                fxExecutor.execute(() -> {
+                    if (stored == null) {
+                        onFound.accept(null);
+                        return;
+                    }
+                    // its page may have arrived in the meantime
+                    Product loaded = store.find(name);
+                    if (loaded == null) {
+                        store.add(stored);
+                        loaded = stored;
+                    }
+                    onFound.accept(loaded);
+                });
+            });
+        }
+
+        /**
+         * Hands {@code onSuggestions} the names matching {@code text} that
+         * are in memory. While the catalog is still loading, and memory had
+         * fewer than {@code limit}, it is called again with Derby's prefix
+         * matches added; by then the user may have typed on, which the
+         * caller should check. Call on the FX thread; both calls happen there.
+         */
+        void suggest(String text, int limit, Consumer<List<String>> onSuggestions) {
+            List<String> names = store.search().suggest(text, limit);
+            onSuggestions.accept(names);
+            if (exhausted || names.size() == limit) {
+                return;
+            }
+            searchThread.execute(() -> {
+                List<String> stored = controller.findNamesStartingWith(text, limit);
+                fxExecutor.execute(() -> {
+                    List<String> merged = new ArrayList<>(names);
+                    for (String name : stored) {
+                        if (merged.size() < limit && !merged.contains(name)) {
+                            merged.add(name);
+                        }
+                    }
+                    if (merged.size() > names.size()) {
+                        onSuggestions.accept(merged);
+                    }
+                });
+            });
+        }
+
+        /**
+         * In lazy mode, restarts paging in the new order so the rows that
+         * belong at the top of the sorted view are fetched first.
+         */
+        void sortBy(ProductSort newSort) {
+            if (mode != Mode.LAZY) {
+                return;
+            }
+            loaderThread.execute(() -> {
+                sort = newSort;
+                cursor = null;
+                fetchedAll = false;
+                exhausted = false;
+                List<Product> page = fetchPage();
+                boolean last = fetchedAll;
+                fxExecutor.execute(() -> apply(page, last));
+            });
+        }
+
+        /**
+         * Shows the rows a bulk import added above {@code afterId} with a
+         * single store update. In lazy mode they are left to paging.
+         */
+        void loadImported(int afterId) {
+            if (mode == Mode.LAZY) {
+                exhausted = false;
+                loaderThread.execute(() -> fetchedAll = false);
+                return;
+            }
+            loaderThread.execute(() -> {
+                List<Product> imported = controller.getProductsAfter(afterId);
+                fxExecutor.execute(() -> apply(imported, false));
+            });
+        }
+
+        void close() {
+            fetchedAll = true;
+            exhausted = true;
+            loaderThread.shutdownNow();
+            searchThread.shutdownNow();
+        }
+
+        private void loadNextPage() {
+            if (exhausted || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            loaderThread.execute(() -> {
+                List<Product> page = fetchPage();
+                boolean last = fetchedAll;
+                fxExecutor.execute(() -> {
+                    apply(page, last);
+                    loading.set(false);
+                });
+            });
+        }
+
+        private List<Product> fetchPage() {
+            List<Product> page = controller.getProductsPage(sort, cursor, pageSize);
+            if (page.size() < pageSize) {
+                fetchedAll = true;
+            }
+            if (!page.isEmpty()) {
+                // the row itself goes to the FX thread and may change under us
+                cursor = page.get(page.size() - 1).copy();
+            }
+            return page;
+        }
+
+        // rows added or looked up while paging are already in the store
+        private void apply(List<Product> page, boolean last) {
+            List<Product> fresh = new ArrayList<>(page.size());
+            for (Product product : page) {
+                if (store.index().findById(product.getId()) == null && store.find(product.getName()) == null) {
+                    fresh.add(product);
+                }
+            }
+            store.addAll(fresh);
+            if (last) {
+                exhausted = true;
+            }
+        }
+    }
+
+    /**
+     * The catalog as this instance last showed it, written on exit so the
+     * next start can fill the tables while Derby is still booting. The file
+     * is read into the heap and decoded a page at a time; it is not mapped,
+     * as a live mapping keeps Windows from replacing the file on the next exit. It carries the
+     * database's catalog id and the {@link ProductsDataController.Change.Position}
+     * it is current to: once Derby is up, a snapshot of another database, or
+     * one ahead of this database (a restored backup), is dropped, and
+     * otherwise the {@link ChangeFeed} replays what changed since.
+     * <p>
+     * Layout: magic, format, catalog id, product id and sale version, a
+     * complete flag and the row count, then id, original, sold and name per
+     * row. Strings are UTF-8 behind a short length.
+     */
+    static final class CatalogSnapshot {
+
+        static final Path FILE = Paths.get(System.getProperty("products.snapshot.file", "database.snapshot"));
+        private static final int MAGIC = 0x50434154;
+        private static final int FORMAT = 1;
+        private static final LatencyHistogram LOAD_TIMER = Metrics.timer("snapshot.load");
+        private static final LatencyHistogram WRITE_TIMER = Metrics.timer("snapshot.write");
+
+        final String catalogId;
+        final ProductsDataController.Change.Position position;
+        // every product was loaded, so there is nothing left to page in from Derby
+        final boolean complete;
+        private final int count;
+        private final ByteBuffer rows;
+
+        private CatalogSnapshot(String catalogId, ProductsDataController.Change.Position position,
+                                boolean complete, int count, ByteBuffer rows) {
+            this.catalogId = catalogId;
+            this.position = position;
+            this.complete = complete;
+            this.count = count;
+            this.rows = rows;
+        }
+
+        /** Reads the snapshot and its header; null when there is none or it is unreadable. */
+        static CatalogSnapshot open(Path file) {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+                if (data.getInt() != MAGIC || data.getInt() != FORMAT) {
+                    System.err.println("Ignoring " + file + ": not a catalog snapshot of this version");
+                    return null;
+                }
+                String catalogId = readString(data);
+                ProductsDataController.Change.Position position =
+                        new ProductsDataController.Change.Position(data.getLong(), data.getLong());
+                boolean complete = data.get() != 0;
+                int count = data.getInt();
+                return new CatalogSnapshot(catalogId, position, complete, count, data.slice());
+            } catch (IOException | BufferUnderflowException e) {
+                System.err.println("Ignoring catalog snapshot " + file + ": " + e);
+                return null;
+            }
+        }
+
+        /** True when the snapshot was taken of this database, at or behind {@code current}. */
+        boolean matches(String currentCatalogId, ProductsDataController.Change.Position current) {
+            return catalogId.equals(currentCatalogId)
+                    && position.productId <= current.productId
+                    && position.saleVersion <= current.saleVersion;
+        }
+
+        /**
+         * Decodes the rows into {@code store}, handing it a page at a time
+         * with at most one in flight. Returns false if the file turned out
+         * to be damaged, leaving whatever rows came before in the store.
+         */
+        boolean loadInto(ProductStore store, Executor fxExecutor, int pageSize) {
+            long start = System.nanoTime();
+            ByteBuffer input = rows.duplicate();
+            try {
+                int loaded = 0;
+                while (loaded < count) {
+                    List<Product> page = new ArrayList<>(Math.min(pageSize, count - loaded));
+                    for (; loaded < count && page.size() < pageSize; loaded++) {
+                        Product product = new Product();
+                        product.setId(input.getInt());
+                        product.setOriginalCount(input.getInt());
+                        product.setSoldCount(input.getInt());
+                        product.setName(readString(input));
+                        page.add(product);
+                    }
+                    CompletableFuture.runAsync(() -> store.addAll(page), fxExecutor).join();
+                }
+                LOAD_TIMER.recordSince(start);
+                return true;
+            } catch (BufferUnderflowException e) {
+                LOAD_TIMER.failed();
+                System.err.println("Catalog snapshot is truncated: " + e);
+                return false;
+            }
+        }
+
+        /**
+         * Writes {@code products} as of {@code position}, with each sold count
+         * taken from the controller's stock counters. Call once the writer
+         * has drained. Products that never got an id are not in Derby and are
+         * left out. The file is replaced whole, so a crash mid-write leaves
+         * the previous snapshot.
+         */
+        static void write(Path file, ProductsDataController controller,
+                          ProductsDataController.Change.Position position, boolean complete,
+                          Collection<Product> products) throws IOException {
+            if (controller.catalogId() == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            int count = 0;
+            for (Product product : products) {
+                if (product.getId() > 0) {
+                    count++;
+                }
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                writeString(out, controller.catalogId());
+                out.writeLong(position.productId);
+                out.writeLong(position.saleVersion);
+                out.writeBoolean(complete);
+                out.writeInt(count);
+                for (Product product : products) {
+                    if (product.getId() > 0) {
+                        out.writeInt(product.getId());
+                        out.writeInt(product.getOriginalCount());
+                        out.writeInt(controller.soldCount(product));
+                        writeString(out, product.getName());
+                    }
+                }
+            } catch (IOException e) {
+                WRITE_TIMER.failed();
+                throw e;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            WRITE_TIMER.recordSince(start);
+        }
+
+        private static String readString(ByteBuffer input) {
+            byte[] bytes = new byte[input.getShort() & 0xFFFF];
+            input.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * A multi-key product ordering that works both in memory, as a
+     * {@link Comparator}, and in Derby, as an {@code ORDER BY} plus a keyset
+     * seek predicate. Id is always the final tie-breaker, so the order is total.
+     */
+    static final class ProductSort {
+
+        enum Key {
+            NAME("Name", "name", Comparator.comparing(Product::getName),
+                    Comparator.comparing((Values values) -> values.name)),
+            IN_STORE("In Store", "original - sold", Comparator.comparingInt(Product::getInStoreCount),
+                    Comparator.comparingInt((Values values) -> values.inStore)),
+            SOLD("Sold", "sold", Comparator.comparingInt(Product::getSoldCount),
+                    Comparator.comparingInt((Values values) -> values.sold));
+
+            private final String label;
+            private final String column;
+            private final Comparator<Product> comparator;
+            private final Comparator<Values> valuesComparator;
+
+            Key(String label, String column, Comparator<Product> comparator, Comparator<Values> valuesComparator) {
+                this.label = label;
+                this.column = column;
+                this.comparator = comparator;
+                this.valuesComparator = valuesComparator;
+            }
+
+            private int compareRows(ColumnarProductStore columns, int a, int b) {
+                if (this == NAME) {
+                    return columns.compareNames(a, b);
+                } else if (this == IN_STORE) {
+                    return Integer.compare(columns.inStoreCount(a), columns.inStoreCount(b));
+                } else {
+                    return Integer.compare(columns.soldCount(a), columns.soldCount(b));
+                }
+            }
+
+            private void bind(PreparedStatement statement, int parameter, Product product) throws SQLException {
+                if (this == NAME) {
+                    statement.setString(parameter, product.getName());
+                } else if (this == IN_STORE) {
+                    statement.setInt(parameter, product.getInStoreCount());
+                } else {
+                    statement.setInt(parameter, product.getSoldCount());
+                }
+            }
+
+            @Override
+            public String toString() {
+                return label;
+            }
+        }
+
+        /**
+         * The values a product sorts by, copied on the thread that owns it so
+         * they can be sorted on another.
+         */
+        static final class Values {
+            final Product product;
+            final String name;
+            final int inStore;
+            final int sold;
+            final int id;
+
+            Values(Product product) {
+                this.product = product;
+                this.name = product.getName();
+                this.inStore = product.getInStoreCount();
+                this.sold = product.getSoldCount();
+                this.id = product.getId();
+            }
+        }
+
+        static final ProductSort BY_ID = new ProductSort(Collections.emptyList(), Collections.emptyList());
+        static final ProductSort BY_NAME = BY_ID.then(Key.NAME, true);
+
+        private final List<Key> keys;
+        private final List<Boolean> ascending;
+
+        private ProductSort(List<Key> keys, List<Boolean> ascending) {
+            this.keys = keys;
+            this.ascending = ascending;
+        }
+
+        int size() {
+            return keys.size();
+        }
+
+        Key key(int index) {
+            return keys.get(index);
+        }
+
+        boolean ascending(int index) {
+            return ascending.get(index);
+        }
+
+        ProductSort then(Key key, boolean ascendingOrder) {
+            List<Key> newKeys = new ArrayList<>(keys);
+            List<Boolean> newAscending = new ArrayList<>(ascending);
+            newKeys.add(key);
+            newAscending.add(ascendingOrder);
+            return new ProductSort(Collections.unmodifiableList(newKeys), Collections.unmodifiableList(newAscending));
+        }
+
+        Comparator<Product> comparator() {
+            Comparator<Product> comparator = (a, b) -> 0;
+            for (int i = 0; i < keys.size(); i++) {
+                Comparator<Product> next = keys.get(i).comparator;
+                comparator = comparator.thenComparing(ascending.get(i) ? next : next.reversed());
+            }
+            return comparator.thenComparingInt(Product::getId);
+        }
+
+        /** The same order as {@link #comparator()}, over copied {@link Values}. */
+        Comparator<Values> valuesComparator() {
+            Comparator<Values> comparator = (a, b) -> 0;
+            for (int i = 0; i < keys.size(); i++) {
+                Comparator<Values> next = keys.get(i).valuesComparator;
+                comparator = comparator.thenComparing(ascending.get(i) ? next : next.reversed());
+            }
+            return comparator.thenComparingInt(values -> values.id);
+        }
+
+        /** The same order over rows of {@code columns}, but for names as {@link ColumnarProductStore#compareNames} has it. */
+        IntBinaryOperator rowComparator(ColumnarProductStore columns) {
+            Key[] rowKeys = keys.toArray(new Key[0]);
+            boolean[] rowAscending = new boolean[rowKeys.length];
+            for (int i = 0; i < rowKeys.length; i++) {
+                rowAscending[i] = ascending.get(i);
+            }
+            return (a, b) -> {
+                for (int i = 0; i < rowKeys.length; i++) {
+                    int compared = rowKeys[i].compareRows(columns, a, b);
+                    if (compared != 0) {
+                        return rowAscending[i] ? compared : -compared;
+                    }
+                }
+                return Integer.compare(columns.id(a), columns.id(b));
+            };
+        }
+
+        String orderBy() {
+            StringBuilder sql = new StringBuilder();
+            for (int i = 0; i < keys.size(); i++) {
+                sql.append(keys.get(i).column).append(ascending.get(i) ? " asc, " : " desc, ");
+            }
+            return sql.append("id").toString();
+        }
+
+        /**
+         * Rows strictly after a cursor row: {@code k1 >= ? and (k1 > ? or
+         * (k1 = ? and k2 > ?) or ... or (k1 = ? and ... and id > ?))}, with
+         * {@code <} for descending keys. The leading bound is implied by the
+         * rest, but without it Derby reads the index from the start.
+         */
+        String seekPredicate() {
+            StringBuilder sql = new StringBuilder();
+            if (!keys.isEmpty()) {
+                sql.append(keys.get(0).column).append(ascending.get(0) ? " >= ? and (" : " <= ? and (");
+            }
+            for (int i = 0; i <= keys.size(); i++) {
+                sql.append(i == 0 ? "(" : " or (");
+                for (int j = 0; j < i; j++) {
+                    sql.append(keys.get(j).column).append(" = ? and ");
+                }
+                if (i == keys.size()) {
+                    sql.append("id > ?)");
+                } else {
+                    sql.append(keys.get(i).column).append(ascending.get(i) ? " > ?)" : " < ?)");
+                }
+            }
+            return keys.isEmpty() ? sql.toString() : sql.append(")").toString();
+        }
+
+        /** Binds the cursor's values for {@link #seekPredicate()}; returns the next parameter index. */
+        int bindSeek(PreparedStatement statement, Product cursor) throws SQLException {
+            int parameter = 1;
+            if (!keys.isEmpty()) {
+                keys.get(0).bind(statement, parameter++, cursor);
+            }
+            for (int i = 0; i <= keys.size(); i++) {
+                for (int j = 0; j < i; j++) {
+                    keys.get(j).bind(statement, parameter++, cursor);
+                }
+                if (i == keys.size()) {
+                    statement.setInt(parameter++, cursor.getId());
+                } else {
+                    keys.get(i).bind(statement, parameter++, cursor);
+                }
+            }
+            return parameter;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ProductSort && keys.equals(((ProductSort) other).keys)
+                    && ascending.equals(((ProductSort) other).ascending);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keys, ascending);
+        }
+    }
+
+    /**
+     * Constant-time lookup of products by name (case-insensitive) and by
+     * Derby id. The index follows the list's adds and removes; sorted views
+     * only permute rows, so they leave it untouched.
+     */
+    static class ProductIndex {
+
+        // written by the store's owning thread, read by request threads in headless mode
+        private final Map<String, Product> byName = new ConcurrentHashMap<>();
+        private final Map<Integer, Product> byId = new ConcurrentHashMap<>();
+
+        // for an index that looks products up somewhere else
+        ProductIndex() {
+        }
+
+        ProductIndex(ObservableList<Product> products) {
+            for (Product product : products) {
+                put(product);
+            }
+            products.addListener((ListChangeListener<Product>) change -> {
+                while (change.next()) {
+                    if (change.wasPermutated()) {
+                        continue;
+                    }
+                    for (Product removed : change.getRemoved()) {
+                        remove(removed);
+                    }
+                    for (Product added : change.getAddedSubList()) {
+                        put(added);
+                    }
+                }
+            });
+        }
+
+        Product find(String name) {
+            return byName.get(key(name));
+        }
+
+        Product findById(int id) {
+            return byId.get(id);
+        }
+
+        /** Makes a product findable by the id Derby generated after it was added. */
+        void idAssigned(Product product) {
+            if (product.getId() != 0) {
+                byId.put(product.getId(), product);
+            }
+        }
+
+        private void put(Product product) {
+            byName.put(key(product.getName()), product);
+            idAssigned(product);
+        }
+
+        private void remove(Product product) {
+            byName.remove(key(product.getName()), product);
+            byId.remove(product.getId(), product);
+        }
+
+        static String key(String name) {
+            return name.trim().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Type-ahead over product names. Lower-cased names sit in a sorted map
+     * for prefix matches. A trigram index finds names typed with a mistake:
+     * a query's rarest trigrams pick the candidates, which are then ranked
+     * by how many of the query's trigrams they contain, shorter names
+     * first. Like {@link ProductIndex} it follows the store's list, so rows
+     * loaded from Derby and rows from {@code added} events are searchable as
+     * soon as they join the store. It keeps names, not products, so it holds
+     * no row of a {@link ColumnarProductList} in memory.
+     * Use it from the thread that owns the store.
+     */
+    static class ProductSearch {
+
+        static final int DEFAULT_LIMIT = 8;
+        // trigram postings read per fuzzy query, rarest first, to bound its cost on common trigrams
+        private static final int MAX_POSTINGS = 5_000;
+        private static final int MIN_CANDIDATES = 64;
+        private static final double MIN_SIMILARITY = 0.3;
+
+        // lower-cased key to the name as given
+        private final NavigableMap<String, String> byKey = new TreeMap<>();
+        private final TrigramTable trigrams = new TrigramTable();
+        // row ordinal to name; a removed product leaves null behind
+        private final List<String> rows = new ArrayList<>();
+
+        ProductSearch(ObservableList<Product> products) {
+            for (Product product : products) {
+                put(product);
+            }
+            products.addListener((ListChangeListener<Product>) change -> {
+                while (change.next()) {
+                    if (change.wasPermutated()) {
+                        continue;
+                    }
+                    for (Product removed : change.getRemoved()) {
+                        remove(removed);
+                    }
+                    for (Product added : change.getAddedSubList()) {
+                        put(added);
+                    }
+                }
+            });
+        }
+
+        /** Prefix matches first, then similar names, up to {@code limit} in all. */
+        List<String> suggest(String text, int limit) {
+            List<String> found = startingWith(text, limit);
+            if (found.size() < limit) {
+                for (String similar : similarTo(text, limit)) {
+                    if (found.size() == limit) {
+                        break;
+                    }
+                    if (!found.contains(similar)) {
+                        found.add(similar);
+                    }
+                }
+            }
+            return found;
+        }
+
+        /** Names that start with {@code prefix}, ignoring case, in name order. */
+        List<String> startingWith(String prefix, int limit) {
+            String key = ProductIndex.key(prefix);
+            List<String> found = new ArrayList<>(limit);
+            if (key.isEmpty()) {
+                return found;
+            }
+            for (String name : byKey.subMap(key, true, key + Character.MAX_VALUE, false).values()) {
+                if (found.size() == limit) {
+                    break;
+                }
+                found.add(name);
+            }
+            return found;
+        }
+
+        /** Names that share enough trigrams with {@code text}, closest first. */
+        List<String> similarTo(String text, int limit) {
+            long[] grams = trigrams(ProductIndex.key(text));
+            List<Postings> lists = new ArrayList<>(grams.length);
+            for (long gram : grams) {
+                Postings postings = trigrams.get(gram);
+                if (postings != null) {
+                    lists.add(postings);
+                }
+            }
+            lists.sort(Comparator.comparingInt(postings -> postings.size));
+
+            Map<Integer, Integer> hits = new HashMap<>();
+            int scanned = 0;
+            for (Postings postings : lists) {
+                if (scanned + postings.size > MAX_POSTINGS && scanned > 0) {
+                    break;
+                }
+                // when even the rarest trigram is everywhere, a slice of it is all we can afford
+                int read = Math.min(postings.size, MAX_POSTINGS);
+                scanned += read;
+                for (int i = 0; i < read; i++) {
+                    hits.merge(postings.ordinals[i], 1, Integer::sum);
+                }
+            }
+
+            // the most-hit candidates get an exact score against every trigram of the query
+            int candidates = Math.max(MIN_CANDIDATES, limit * 8);
+            PriorityQueue<Map.Entry<Integer, Integer>> best = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (Map.Entry<Integer, Integer> hit : hits.entrySet()) {
+                best.add(hit);
+                if (best.size() > candidates) {
+                    best.poll();
+                }
+            }
+            Arrays.sort(grams);
+            List<Match> matches = new ArrayList<>(best.size());
+            for (Map.Entry<Integer, Integer> candidate : best) {
+                String name = rows.get(candidate.getKey());
+                if (name == null) {
+                    continue;
+                }
+                long[] nameGrams = trigrams(ProductIndex.key(name));
+                int shared = shared(grams, nameGrams);
+                // what was typed is usually one word of a longer name, so only its own trigrams count
+                if (shared >= grams.length * MIN_SIMILARITY) {
+                    matches.add(new Match(name, shared, nameGrams.length));
+                }
+            }
+            matches.sort(Match.CLOSEST_FIRST);
+            List<String> similar = new ArrayList<>(Math.min(limit, matches.size()));
+            for (int i = 0; i < limit && i < matches.size(); i++) {
+                similar.add(matches.get(i).name);
+            }
+            return similar;
+        }
+
+        private void put(Product product) {
+            String name = product.getName();
+            String key = ProductIndex.key(name);
+            byKey.put(key, name);
+            int ordinal = rows.size();
+            rows.add(name);
+            for (long gram : trigrams(key)) {
+                trigrams.postings(gram).add(ordinal);
+            }
+        }
+
+        private void remove(Product product) {
+            String name = product.getName();
+            String key = ProductIndex.key(name);
+            byKey.remove(key, name);
+            long[] grams = trigrams(key);
+            Postings postings = grams.length == 0 ? null : trigrams.get(grams[0]);
+            for (int i = 0; postings != null && i < postings.size; i++) {
+                if (name.equals(rows.get(postings.ordinals[i]))) {
+                    rows.set(postings.ordinals[i], null);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Distinct trigrams of a lower-cased name, padded so the first
+         * letters count double, each packed as three 16-bit chars in a long.
+         */
+        static long[] trigrams(String key) {
+            if (key.isEmpty()) {
+                return new long[0];
+            }
+            String padded = "  " + key + " ";
+            long[] grams = new long[padded.length() - 2];
+            int count = 0;
+            long gram = (long) padded.charAt(0) << 16 | padded.charAt(1);
+            for (int i = 2; i < padded.length(); i++) {
+                gram = (gram << 16 | padded.charAt(i)) & 0xFFFF_FFFF_FFFFL;
+                if (!contains(grams, count, gram)) {
+                    grams[count++] = gram;
+                }
+            }
+            return count == grams.length ? grams : Arrays.copyOf(grams, count);
+        }
+
+        private static boolean contains(long[] grams, int count, long gram) {
+            for (int i = 0; i < count; i++) {
+                if (grams[i] == gram) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int shared(long[] sortedQueryGrams, long[] grams) {
+            int shared = 0;
+            for (long gram : grams) {
+                if (Arrays.binarySearch(sortedQueryGrams, gram) >= 0) {
+                    shared++;
+                }
+            }
+            return shared;
+        }
+
+        private static final class Match {
+            static final Comparator<Match> CLOSEST_FIRST = Comparator.<Match>comparingInt(match -> -match.shared)
+                    .thenComparingInt(match -> match.grams)
+                    .thenComparing(match -> match.name);
+
+            final String name;
+            final int shared;
+            final int grams;
+
+            Match(String name, int shared, int grams) {
+                this.name = name;
+                this.shared = shared;
+                this.grams = grams;
+            }
+        }
+
+        /** Row ordinals of the names containing one trigram, in the order they were added. */
+        private static final class Postings {
+            int[] ordinals = new int[4];
+            int size;
+
+            void add(int ordinal) {
+                if (size == ordinals.length) {
+                    ordinals = Arrays.copyOf(ordinals, size * 2);
+                }
+                ordinals[size++] = ordinal;
+            }
+        }
+
+        /** Open-addressing map from packed trigram to its postings, without boxing the key. */
+        private static final class TrigramTable {
+            private long[] keys = new long[1024];
+            private Postings[] values = new Postings[1024];
+            private int size;
+
+            Postings get(long gram) {
+                for (int slot = slot(gram, keys.length); values[slot] != null; slot = (slot + 1) & (keys.length - 1)) {
+                    if (keys[slot] == gram) {
+                        return values[slot];
+                    }
+                }
+                return null;
+            }
+
+            Postings postings(long gram) {
+                int slot = slot(gram, keys.length);
+                for (; values[slot] != null; slot = (slot + 1) & (keys.length - 1)) {
+                    if (keys[slot] == gram) {
+                        return values[slot];
+                    }
+                }
+                Postings postings = new Postings();
+                keys[slot] = gram;
+                values[slot] = postings;
+                // at most half full, so probe runs stay short
+                if (++size * 2 > keys.length) {
+                    grow();
+                }
+                return postings;
+            }
+
+            private void grow() {
+                long[] oldKeys = keys;
+                Postings[] oldValues = values;
+                keys = new long[oldKeys.length * 2];
+                values = new Postings[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldValues[i] != null) {
+                        int slot = slot(oldKeys[i], keys.length);
+                        while (values[slot] != null) {
+                            slot = (slot + 1) & (keys.length - 1);
+                        }
+                        keys[slot] = oldKeys[i];
+                        values[slot] = oldValues[i];
+                    }
+                }
+            }
+
+            private static int slot(long gram, int capacity) {
+                long mixed = gram * 0x9E3779B97F4A7C15L;
+                return (int) (mixed >>> 40) & (capacity - 1);
+            }
+        }
+    }
+
+    /**
+     * Named latency histograms shared by the whole process, with a text
+     * report that the diagnostics window, the periodic dump file and JMX all
+     * show. Hot paths look their histogram up once and keep it in a field.
+     */
+    static final class Metrics {
+
+        /** -Dproducts.metrics.events=false takes the timing out of event dispatch. */
+        static final boolean TIME_EVENTS = Boolean.parseBoolean(System.getProperty("products.metrics.events", "true"));
+
+        private static final Map<String, LatencyHistogram> TIMERS = new ConcurrentHashMap<>();
+
+        private Metrics() {
+        }
+
+        static LatencyHistogram timer(String name) {
+            return TIMERS.computeIfAbsent(name, LatencyHistogram::new);
+        }
+
+        /** One line per timer, sorted by name; times in microseconds. */
+        static String report() {
+            List<LatencyHistogram> timers = new ArrayList<>(TIMERS.values());
+            timers.sort(Comparator.comparing(timer -> timer.name));
+            StringBuilder report = new StringBuilder(String.format("%-44s %10s %8s %12s %9s %9s %9s %9s %9s%n",
+                    "timer (us)", "count", "failed", "items", "mean", "p50", "p99", "p99.9", "max"));
+            for (LatencyHistogram timer : timers) {
+                report.append(String.format("%-44s %,10d %,8d %,12d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                        timer.name, timer.count(), timer.failures(), timer.items(), timer.meanNanos() / 1e3,
+                        timer.percentileNanos(50) / 1e3, timer.percentileNanos(99) / 1e3,
+                        timer.percentileNanos(99.9) / 1e3, timer.maxNanos() / 1e3));
+            }
+            return report.toString();
+        }
+
+        static void reset() {
+            TIMERS.values().forEach(LatencyHistogram::reset);
+        }
+
+        /** Rewrites {@code file} with the report every {@code periodSeconds} on a daemon thread. */
+        static void dumpPeriodically(Path file, long periodSeconds) {
+            Executors.newSingleThreadScheduledExecutor(daemonThreads("metrics-dump")).scheduleAtFixedRate(() -> {
+                try {
+                    Files.write(file, (new java.util.Date() + System.lineSeparator() + report())
+                            .getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    System.err.println("metrics dump failed: " + e);
+                }
+            }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+
+        /** Publishes the report as {@code productsmanager:type=Metrics}; quietly skipped if already there. */
+        static void registerMBean() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(new MetricsBean(), MetricsMBean.class),
+                        new ObjectName("productsmanager:type=Metrics"));
+            } catch (InstanceAlreadyExistsException ignored) {
+                // already registered by an earlier startMetrics() in this JVM
+            } catch (JMException e) {
+                System.err.println("metrics MBean not registered: " + e);
+            }
+        }
+
+        private static final class MetricsBean implements MetricsMBean {
+            @Override
+            public String getReport() {
+                return report();
+            }
+
+            @Override
+            public double percentileMicros(String timer, double percentile) {
+                LatencyHistogram histogram = TIMERS.get(timer);
+                return histogram == null ? Double.NaN : histogram.percentileNanos(percentile) / 1e3;
+            }
+
+            @Override
+            public void reset() {
+                Metrics.reset();
+            }
+        }
+    }
+
+    /** JMX view of {@link Metrics}; public because the MBean server introspects it. */
+    public interface MetricsMBean {
+        String getReport();
+
+        double percentileMicros(String timer, double percentile);
+
+        void reset();
+    }
+
+    /**
+     * Allocation-free latency histogram in the HDR style: exact below 32 ns,
+     * then 16 linear buckets per power of two, so any value is within about
+     * 6% of its bucket. Recording is an atomic increment plus two adders and
+     * is safe from any thread. Also counts failed operations, and the items
+     * (rows, say) that callers report their operations handled.
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        LatencyHistogram(String name) {
+            this.name = name;
+        }
+
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucketOf(value));
+            totalNanos.add(value);
+            if (value > maxNanos.get()) {
+                maxNanos.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        void failed() {
+            failures.increment();
+        }
+
+        void addItems(long count) {
+            items.add(count);
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        long failures() {
+            return failures.sum();
+        }
+
+        long items() {
+            return items.sum();
+        }
+
+        long maxNanos() {
+            return maxNanos.get();
+        }
+
+        double meanNanos() {
+            long n = count();
+            return n == 0 ? 0 : (double) totalNanos.sum() / n;
+        }
+
+        /** Upper bound of the bucket holding the given percentile (0-100). */
+        long percentileNanos(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            totalNanos.reset();
+            failures.reset();
+            items.reset();
+            maxNanos.set(0);
+        }
+
+        static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        static long highestValueIn(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long mantissa = bucket - (long) shift * SUB_BUCKETS;
+            long next = (mantissa + 1) << shift;
+            return next <= 0 ? Long.MAX_VALUE : next - 1;
+        }
+    }
+
+    /**
+     * Where an {@link EventListener} wants its {@code update} to run.
+     * {@code ORDERED_IO} runs on the IO executor too, but through one lane
+     * shared by every such listener, so their updates run in the order they
+     * were notified whatever the event type.
+     */
+    enum ExecutionContext { CALLER, FX_THREAD, IO, ORDERED_IO, VIRTUAL }
+
+    /**
+     * Fans events out to subscribed listeners. Without executors every
+     * listener runs in turn on the notifying thread. With executors each
+     * listener runs on the executor for its {@link ExecutionContext}, so a
+     * slow listener no longer holds up the others; events of one type still
+     * reach each listener in the order they were notified.
+     */
+    interface EventBus {
+
+        long CLOSE_TIMEOUT_SECONDS = 10;
+
+        void subscribe(EventType eventType, EventListener listener);
+
+        /** Completes once every listener has handled the event. */
+        CompletableFuture<Void> notify(EventType eventType, EventObject event);
+
+        /**
+         * Waits for already-notified events to reach the background listeners,
+         * then stops the executors. FX lanes are not awaited because this is
+         * called on the FX thread.
+         */
+        void close();
+
+        /** FX work on {@code fxExecutor}, blocking work on a small pool, and virtual threads when the JVM has them. */
+        static Map<ExecutionContext, Executor> defaultExecutors(Executor fxExecutor) {
+            Map<ExecutionContext, Executor> executors = new EnumMap<>(ExecutionContext.class);
+            executors.put(ExecutionContext.CALLER, Runnable::run);
+            executors.put(ExecutionContext.FX_THREAD, fxExecutor);
+            ExecutorService io = Executors.newFixedThreadPool(4, daemonThreads("event-io"));
+            executors.put(ExecutionContext.IO, io);
+            executors.put(ExecutionContext.ORDERED_IO, io);
+            executors.put(ExecutionContext.VIRTUAL, virtualThreads("event-virtual"));
+            return executors;
+        }
+
+        /** A virtual thread per task on JVMs that have them, else cached threads named {@code fallbackName}. */
+        static ExecutorService virtualThreads(String fallbackName) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(daemonThreads(fallbackName));
+            }
+        }
+
+        static void awaitThenShutdown(Map<ExecutionContext, Executor> executors,
+                                      List<CompletableFuture<Void>> pending) {
+            if (executors == null) {
+                return;
+            }
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                        .get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                System.err.println("Event listeners did not finish: " + e);
+            }
+            for (Executor executor : new HashSet<>(executors.values())) {
+                if (executor instanceof ExecutorService) {
+                    ((ExecutorService) executor).shutdown();
+                }
+            }
+        }
+
+        /**
+         * Runs one listener's updates for one event type strictly one after
+         * another; the {@code ORDERED_IO} lane does so for all its listeners.
+         */
+        final class Lane {
+
+            final ExecutionContext context;
+            private final Executor executor;
+            private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+            Lane(ExecutionContext context, Executor executor) {
+                this.context = context;
+                this.executor = executor;
+            }
+
+            synchronized CompletableFuture<Void> submit(Runnable update) {
+                if (context == ExecutionContext.CALLER) {
+                    update.run();
+                    return tail;
+                }
+                // a failed update must not stall the ones queued behind it
+                tail = tail.handle((ignored, failure) -> null).thenRunAsync(update, executor);
+                return tail;
+            }
+
+            synchronized CompletableFuture<Void> tail() {
+                return tail;
+            }
+        }
+    }
+
+    /**
+     * The original {@link EventBus}, keyed by event name. Listeners live in
+     * plain lists, so every {@code subscribe} has to happen before events
+     * are notified from other threads.
+     */
+    static class EventManager implements EventBus {
+
+        Map<String, List<EventListener>> listeners = new HashMap<>();
+        private final Map<String, List<Lane>> lanes = new HashMap<>();
+        private final Map<ExecutionContext, Executor> executors;
+        // the one lane every ORDERED_IO listener shares
+        private final Lane orderedLane;
+
+        EventManager(String... operations) {
+            this(null, operations);
+        }
+
+        EventManager(Map<ExecutionContext, Executor> executors, String... operations) {
+            this.executors = executors;
+            this.orderedLane = executors == null ? null
+                    : new Lane(ExecutionContext.ORDERED_IO, executors.get(ExecutionContext.ORDERED_IO));
+            for (String operation : operations) {
+                this.listeners.put(operation, new ArrayList<>());
+                this.lanes.put(operation, new ArrayList<>());
+            }
+        }
+
+        void subscribe(String eventType, EventListener listener) {
+            List<EventListener> users = listeners.get(eventType);
+            users.add(listener);
+            if (executors != null) {
+                lanes.get(eventType).add(listener.context() == ExecutionContext.ORDERED_IO ? orderedLane
+                        : new Lane(listener.context(), executors.get(listener.context())));
+            }
+        }
+
+        @Override
+        public void subscribe(EventType eventType, EventListener listener) {
+            subscribe(eventType.key, listener);
+        }
+
+        CompletableFuture<Void> notify(String eventType, EventObject event) {
+            List<EventListener> users = listeners.get(eventType);
+            if (executors == null) {
+                for (EventListener listener : users) {
+                    listener.update(event);
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            List<Lane> userLanes = lanes.get(eventType);
+            CompletableFuture<?>[] handled = new CompletableFuture<?>[users.size()];
+            for (int i = 0; i < handled.length; i++) {
+                EventListener listener = users.get(i);
+                handled[i] = userLanes.get(i).submit(() -> listener.update(event));
+            }
+            return CompletableFuture.allOf(handled);
+        }
+
+        @Override
+        public CompletableFuture<Void> notify(EventType eventType, EventObject event) {
+            return notify(eventType.key, event);
+        }
+
+        @Override
+        public void close() {
+            if (executors == null) {
+                return;
+            }
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (List<Lane> typeLanes : lanes.values()) {
+                for (Lane lane : typeLanes) {
+                    if (lane.context != ExecutionContext.FX_THREAD) {
+                        pending.add(lane.tail());
+                    }
+                }
+            }
+            EventBus.awaitThenShutdown(executors, pending);
+        }
+    }
+
+    enum EventType {
+        ADDED("added"), SOLD("sold"), SORTED("sorted");
+
+        private static final EventType[] TYPES = values();
+
+        final String key;
+
+        EventType(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * An {@link EventBus} for many concurrent producers. Listeners are
+     * kept per {@link EventType} in copy-on-write arrays, so {@code notify}
+     * never locks and {@code subscribe} is safe at any time. Every event is
+     * a fresh {@link EventObject}. In {@code EventNotifyBenchmark} with
+     * caller listeners the bus allocated 0 B/op against EventManager's 24,
+     * and a pool of events managed 22-32 ops/us against 81-209 for fresh
+     * ones. Events the app hands to the FX thread or an IO lane do reach
+     * the heap, one small object each; the pool was slower even where
+     * nothing escapes. A timed bus records every notify and
+     * every listener update in {@link Metrics}.
+     */
+    static class ConcurrentEventBus implements EventBus {
+
+        private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+        private static final Subscriber[] NONE = new Subscriber[0];
+
+        private final AtomicReferenceArray<Subscriber[]> subscribers =
+                new AtomicReferenceArray<>(EventType.TYPES.length);
+        private final LatencyHistogram[] notifyTimers = new LatencyHistogram[EventType.TYPES.length];
+        private final Map<ExecutionContext, Executor> executors;
+        // the one lane every ORDERED_IO listener shares
+        private final Lane orderedLane;
+        private final boolean timed;
+
+        ConcurrentEventBus() {
+            this(null);
+        }
+
+        ConcurrentEventBus(Map<ExecutionContext, Executor> executors) {
+            this(executors, Metrics.TIME_EVENTS);
+        }
+
+        ConcurrentEventBus(Map<ExecutionContext, Executor> executors, boolean timed) {
+            this.executors = executors;
+            this.orderedLane = executors == null ? null
+                    : new Lane(ExecutionContext.ORDERED_IO, executors.get(ExecutionContext.ORDERED_IO));
+            this.timed = timed;
+            for (int i = 0; i < EventType.TYPES.length; i++) {
+                subscribers.set(i, NONE);
+                notifyTimers[i] = Metrics.timer("event." + EventType.TYPES[i].key + ".notify");
+            }
+        }
+
+        @Override
+        public void subscribe(EventType eventType, EventListener listener) {
+            ExecutionContext context = executors == null ? ExecutionContext.CALLER : listener.context();
+            Subscriber subscriber = new Subscriber(listener,
+                    context == ExecutionContext.ORDERED_IO ? orderedLane
+                            : new Lane(context, executors == null ? null : executors.get(context)),
+                    Metrics.timer("event." + eventType.key + ".listener." + listener.getClass().getSimpleName()));
+            Subscriber[] current, next;
+            do {
+                current = subscribers.get(eventType.ordinal());
+                next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = subscriber;
+            } while (!subscribers.compareAndSet(eventType.ordinal(), current, next));
+        }
+
+        @Override
+        public CompletableFuture<Void> notify(EventType eventType, EventObject event) {
+            if (!timed) {
+                return dispatch(eventType, event);
+            }
+            long start = System.nanoTime();
+            long mark = start;
+            Subscriber[] current = subscribers.get(eventType.ordinal());
+            CompletableFuture<?>[] handled = null;
+            for (int i = 0; i < current.length; i++) {
+                Subscriber subscriber = current[i];
+                if (subscriber.inline) {
+                    // one clock read per inline listener: its end is the next one's start
+                    mark = subscriber.update(event, mark);
+                } else {
+                    if (handled == null) {
+                        handled = new CompletableFuture<?>[current.length];
+                        Arrays.fill(handled, DONE);
+                    }
+                    handled[i] = subscriber.lane.submit(() -> subscriber.update(event, System.nanoTime()));
+                    mark = System.nanoTime();
+                }
+            }
+            // for background listeners this is the cost of handing the event over
+            notifyTimers[eventType.ordinal()].record(mark - start);
+            return handled == null ? DONE : CompletableFuture.allOf(handled);
+        }
+
+        private CompletableFuture<Void> dispatch(EventType eventType, EventObject event) {
+            Subscriber[] current = subscribers.get(eventType.ordinal());
+            CompletableFuture<?>[] handled = null;
+            for (int i = 0; i < current.length; i++) {
+                Subscriber subscriber = current[i];
+                if (subscriber.inline) {
+                    subscriber.listener.update(event);
+                } else {
+                    if (handled == null) {
+                        handled = new CompletableFuture<?>[current.length];
+                        Arrays.fill(handled, DONE);
+                    }
+                    handled[i] = subscriber.lane.submit(() -> subscriber.listener.update(event));
+                }
+            }
+            return handled == null ? DONE : CompletableFuture.allOf(handled);
+        }
+
+        @Override
+        public void close() {
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (int i = 0; i < subscribers.length(); i++) {
+                for (Subscriber subscriber : subscribers.get(i)) {
+                    if (subscriber.lane.context != ExecutionContext.FX_THREAD) {
+                        pending.add(subscriber.lane.tail());
+                    }
+                }
+            }
+            EventBus.awaitThenShutdown(executors, pending);
+        }
+
+        private static final class Subscriber {
+
+            final EventListener listener;
+            final Lane lane;
+            final LatencyHistogram timer;
+            // runs on the notifying thread; read once per notify, so kept beside the listener
+            final boolean inline;
+
+            Subscriber(EventListener listener, Lane lane, LatencyHistogram timer) {
+                this.listener = listener;
+                this.lane = lane;
+                this.timer = timer;
+                this.inline = lane.context == ExecutionContext.CALLER;
+            }
+
+            /** Runs the listener and records its time from {@code startNanos}; returns the end time. */
+            long update(EventObject event, long startNanos) {
+                try {
+                    listener.update(event);
+                } catch (RuntimeException e) {
+                    timer.failed();
+                    timer.recordSince(startNanos);
+                    throw e;
+                }
+                long end = System.nanoTime();
+                timer.record(end - startNanos);
+                return end;
+            }
+        }
+    }
+
+    /** What became of an added or sold event, as reported to whoever notified it. */
+    enum EventResult {
+        ADDED(true, "Successfully Added"),
+        NOT_ADDED(false, "Not Added"),
+        DUPLICATE(false, "Already in the catalog"),
+        BOUGHT(true, "Successfully Bought"),
+        NOT_BOUGHT(false, "Not Bought"),
+        OUT_OF_STOCK(false, "Not enough in store"),
+        UNKNOWN_PRODUCT(false, "No such product");
+
+        final boolean success;
+        final String message;
+
+        EventResult(boolean success, String message) {
+            this.success = success;
+            this.message = message;
+        }
+    }
+
+    static class EventObject {
+
+        static final Consumer<EventResult> NO_RESULT = result -> { };
+
+        Product product;
+        String name;
+        int originalCount;
+        int soldCount;
+        int quantity;
+        ProductSort sortedBy = ProductSort.BY_NAME;
+        Consumer<EventResult> onResult = NO_RESULT;
+        // already in Derby: a sale the writer confirmed, or a change the ChangeFeed brought from another instance
+        boolean stored;
+
+        EventObject(Product product) {
+            capture(product);
+        }
+
+        // the values are read here, on the notifying thread, for listeners running elsewhere
+        void capture(Product product) {
+            this.product = product;
+            this.name = product == null ? null : product.getName();
+            this.originalCount = product == null ? 0 : product.getOriginalCount();
+            this.soldCount = product == null ? 0 : product.getSoldCount();
+        }
+
+        /** A detached product holding the captured values, safe to hand to another thread. */
+        Product captured() {
+            Product values = new Product();
+            values.setId(product.getId());
+            values.setName(name);
+            values.setOriginalCount(originalCount);
+            values.setSoldCount(soldCount);
+            return values;
+        }
+
+        /** This sale as Derby now has it, for the listeners that show sales: stored, with that sold count. */
+        EventObject confirmed(int storedSoldCount) {
+            EventObject confirmed = new EventObject(null);
+            confirmed.product = product;
+            confirmed.name = name;
+            confirmed.originalCount = originalCount;
+            confirmed.soldCount = storedSoldCount;
+            confirmed.quantity = quantity;
+            confirmed.stored = true;
+            return confirmed;
+        }
+
+        /** Called once the database listener knows the outcome, on the writer's callback executor. */
+        void setOnResult(Consumer<EventResult> onResult) {
+            this.onResult = onResult;
+        }
+
+    }
+
+    interface EventListener {
+        void update(EventObject event);
+
+        default ExecutionContext context() {
+            return ExecutionContext.CALLER;
+        }
+    }
+
+    /**
+     * Hands added products to the writer. Stock counters, the index and
+     * sales all go by name, so a name already in Derby, or one handed over
+     * and not yet stored, is refused as {@link EventResult#DUPLICATE}.
+     */
+    static class ProductAddedDatabaseListener implements EventListener {
+
+        ProductsWriter writer;
+        ProductsDataController controller;
+        ProductIndex index;
+        // added here, on the ordered lane; removed by the writer's callbacks
+        private final Set<String> storing = ConcurrentHashMap.newKeySet();
+
+        ProductAddedDatabaseListener(ProductsWriter writer, ProductsDataController controller, ProductIndex index) {
+            this.writer = writer;
+            this.controller = controller;
+            this.index = index;
+        }
+
+        @Override
+        public void update(EventObject event) {
+           if (event.stored) {
+               return;
+           }
+           Product product = event.product;
+           Consumer<EventResult> onResult = event.onResult;
+           String key = ProductIndex.key(event.name);
+           if (!storing.add(key)) {
+               writer.callbackExecutor().execute(() -> onResult.accept(EventResult.DUPLICATE));
+               return;
+           }
+           if (controller.findProduct(event.name) != null) {
+               storing.remove(key);
+               writer.callbackExecutor().execute(() -> onResult.accept(EventResult.DUPLICATE));
+               return;
+           }
+           writer.addProduct(product, event.captured(), success -> {
+               storing.remove(key);
+               if(success) {
+                   index.idAssigned(product);
+                   onResult.accept(EventResult.ADDED);
+               } else {
+                   onResult.accept(EventResult.NOT_ADDED);
+               }
+           });
+        }
+
+        // adds and sales reach the writer in the order they were notified, so a sale never overtakes its product
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.ORDERED_IO;
+        }
+    }
+
+    static class ProductAddedStoreListener implements EventListener {
+
+        ProductStore store;
+
+        ProductAddedStoreListener(ProductStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void update(EventObject event) {
+            store.add(event.product);
+        }
+
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.FX_THREAD;
+        }
+    }
+
+    /**
+     * Hands reserved sales to the writer. Only once Derby has taken one does
+     * it reach the table, stats and rates: as a stored {@code sold} event
+     * with the confirmed sold count, after which the seller hears
+     * {@link EventResult#BOUGHT}. A refused sale never shows.
+     */
+    static class ProductSoldDatabaseListener implements EventListener {
+
+        ProductsWriter writer;
+        ProductsDataController controller;
+        EventBus bus;
+
+        ProductSoldDatabaseListener(ProductsWriter writer, ProductsDataController controller, EventBus bus) {
+            this.writer = writer;
+            this.controller = controller;
+            this.bus = bus;
+        }
+
+        @Override
+        public void update(EventObject event) {
+            if (event.stored) {
+                return;
+            }
+            Consumer<EventResult> onResult = event.onResult;
+            writer.sellProduct(event.product, event.captured(), event.quantity, success -> {
+                if(success) {
+                    EventObject confirmed = event.confirmed(controller.confirmedSoldCount(event.product));
+                    bus.notify(EventType.SOLD, confirmed).whenComplete((handled, failure) ->
+                            writer.callbackExecutor().execute(() -> onResult.accept(EventResult.BOUGHT)));
+                } else {
+                    onResult.accept(EventResult.NOT_BOUGHT);
+                }
+            });
+        }
+
+        // adds and sales reach the writer in the order they were notified, so a sale never overtakes its product
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.ORDERED_IO;
+        }
+    }
+
+    /**
+     * Applies sales to the shared products, which is what repaints the
+     * tables. Sales can arrive from any thread at any rate; they are merged
+     * per product and written to the product at most once per animation
+     * pulse, so UI work is capped at the display refresh rate. Sold counts
+     * only grow, so keeping the highest pending count per product loses
+     * nothing.
+     */
+    static class ProductSoldViewListener extends AnimationTimer implements EventListener {
+
+        private static final LatencyHistogram PULSE_TIMER = Metrics.timer("fx.soldView.pulse");
+
+        private final Map<Product, Integer> pending = new ConcurrentHashMap<>();
+
+        @Override
+        public void update(EventObject event) {
+            if (event.stored) {
+                pending.merge(event.product, event.soldCount, Math::max);
+            }
+        }
+
+        @Override
+        public void handle(long now) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            for (Map.Entry<Product, Integer> sale : pending.entrySet()) {
+                // a sale merged since we read the entry stays pending for the next pulse
+                if (pending.remove(sale.getKey(), sale.getValue())) {
+                    sale.getKey().setSoldCount(sale.getValue());
+                }
+            }
+            PULSE_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Applies sales straight to the shared products, for an engine without
+     * an animation pulse to pace {@link ProductSoldViewListener}. Runs on the
+     * thread that owns the store.
+     */
+    static class ProductSoldStoreListener implements EventListener {
+
+        @Override
+        public void update(EventObject event) {
+            // events may arrive out of order across sellers; sold counts only grow
+            if (event.stored && event.soldCount > event.product.getSoldCount()) {
+                event.product.setSoldCount(event.soldCount);
+            }
+        }
+
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.FX_THREAD;
+        }
+    }
+
+    /**
+     * Running figures for the Executive View: units sold and in store across
+     * the catalog, and the best sellers. Products are picked up as they join
+     * the store, and sales come from {@code sold} events. Each change costs a
+     * hash lookup and a re-rank in a sorted set (O(log n)); nothing is ever
+     * rescanned. Products are told apart by name, which the store keeps
+     * unique, so a {@link ColumnarProductList} row's view need not be kept
+     * alive. Updated on the FX thread; the labels refresh once per batch of
+     * queued events.
+     */
+    static class ExecutiveStats implements EventListener {
+
+        static final int TOP_SELLERS = 5;
+        private static final LatencyHistogram REFRESH_TIMER = Metrics.timer("fx.executiveStats.refresh");
+
+        /** A product's counts as last seen by the stats; the ranking key. */
+        private static final class Stat {
+            final String name;
+            final long order;
+            int originalCount;
+            int soldCount;
+
+            Stat(Product product, long order) {
+                this.name = product.getName();
+                this.order = order;
+                this.originalCount = product.getOriginalCount();
+                this.soldCount = product.getSoldCount();
+            }
+        }
+
+        private static final Comparator<Stat> BEST_SELLING = Comparator.<Stat>comparingInt(stat -> -stat.soldCount)
+                .thenComparing(stat -> stat.name)
+                .thenComparingLong(stat -> stat.order);
+
+        private final Executor fxExecutor;
+        private final Map<String, Stat> stats = new HashMap<>();
+        private final TreeSet<Stat> ranking = new TreeSet<>(BEST_SELLING);
+        private long added;
+        private long totalOriginal;
+        private long totalSold;
+        private boolean refreshQueued;
+
+        private final ReadOnlyLongWrapper unitsSold = new ReadOnlyLongWrapper(this, "unitsSold");
+        private final ReadOnlyLongWrapper unitsInStore = new ReadOnlyLongWrapper(this, "unitsInStore");
+        private final ReadOnlyDoubleWrapper sellThrough = new ReadOnlyDoubleWrapper(this, "sellThrough");
+        private final ObservableList<String> topSellers = FXCollections.observableArrayList();
+
+        ExecutiveStats(ObservableList<Product> products, Executor fxExecutor) {
+            this.fxExecutor = fxExecutor;
+            products.forEach(this::track);
+            products.addListener((ListChangeListener<Product>) change -> {
+                while (change.next()) {
+                    if (change.wasPermutated() || change.wasUpdated()) {
+                        continue;
+                    }
+                    change.getRemoved().forEach(this::untrack);
+                    change.getAddedSubList().forEach(this::track);
+                }
+                queueRefresh();
+            });
+            refresh();
+        }
+
+        @Override
+        public void update(EventObject event) {
+            Stat stat = stats.get(event.product.getName());
+            // sold counts only grow; a late or repeated event changes nothing
+            if (!event.stored || stat == null || event.soldCount <= stat.soldCount) {
+                return;
+            }
+            ranking.remove(stat);
+            totalSold += event.soldCount - stat.soldCount;
+            stat.soldCount = event.soldCount;
+            ranking.add(stat);
+            queueRefresh();
+        }
+
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.FX_THREAD;
+        }
+
+        ReadOnlyLongProperty unitsSoldProperty() {
+            return unitsSold.getReadOnlyProperty();
+        }
+
+        ReadOnlyLongProperty unitsInStoreProperty() {
+            return unitsInStore.getReadOnlyProperty();
+        }
+
+        /** Units sold over units ever stocked, across the catalog (0 to 1). */
+        ReadOnlyDoubleProperty sellThroughProperty() {
+            return sellThrough.getReadOnlyProperty();
+        }
+
+        /** "name (sold)" for the best sellers, best first. */
+        ObservableList<String> topSellers() {
+            return topSellers;
+        }
+
+        private void track(Product product) {
+            if (stats.containsKey(product.getName())) {
+                return;
+            }
+            Stat stat = new Stat(product, added++);
+            stats.put(stat.name, stat);
+            ranking.add(stat);
+            totalOriginal += stat.originalCount;
+            totalSold += stat.soldCount;
+        }
+
+        private void untrack(Product product) {
+            Stat stat = stats.remove(product.getName());
+            if (stat != null) {
+                ranking.remove(stat);
+                totalOriginal -= stat.originalCount;
+                totalSold -= stat.soldCount;
+            }
+        }
+
+        private void queueRefresh() {
+            if (!refreshQueued) {
+                refreshQueued = true;
+                fxExecutor.execute(this::refresh);
+            }
+        }
+
+        private void refresh() {
+            long start = System.nanoTime();
+            refreshQueued = false;
+            unitsSold.set(totalSold);
+            unitsInStore.set(totalOriginal - totalSold);
+            sellThrough.set(totalOriginal == 0 ? 0 : (double) totalSold / totalOriginal);
+            List<String> top = new ArrayList<>(TOP_SELLERS);
+            for (Stat stat : ranking) {
+                if (top.size() == TOP_SELLERS) {
+                    break;
+                }
+                top.add(stat.name + " (" + stat.soldCount + ")");
+            }
+            if (!top.equals(topSellers)) {
+                topSellers.setAll(top);
+            }
+            REFRESH_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Units sold per product over the last minute, hour and day, kept in
+     * memory so rate questions never become aggregate queries. Each window is
+     * a ring of time buckets (60 seconds, 60 minutes, 24 hours). A bucket is
+     * one {@code long} holding its time slot in the high half and its units in
+     * the low half, so recording a sale is a compare-and-set per ring and
+     * needs no lock. Fed by {@code sold} events on the publishing thread, and
+     * seeded from the {@code sale} table at start-up.
+     */
+    static class SalesRates implements EventListener {
+
+        enum Window {
+            MINUTE(1, 60), HOUR(60, 60), DAY(3600, 24);
+
+            final int bucketSeconds;
+            final int buckets;
+
+            Window(int bucketSeconds, int buckets) {
+                this.bucketSeconds = bucketSeconds;
+                this.buckets = buckets;
+            }
+
+            long millis() {
+                return TimeUnit.SECONDS.toMillis((long) bucketSeconds * buckets);
+            }
+        }
+
+        /** The three rings for one product, or for the whole catalog. */
+        static final class Rings {
+            private final AtomicLongArray[] rings = new AtomicLongArray[Window.values().length];
+
+            Rings() {
+                for (Window window : Window.values()) {
+                    rings[window.ordinal()] = new AtomicLongArray(window.buckets);
+                }
+            }
+
+            void record(int quantity, long atMillis) {
+                long second = atMillis / 1000;
+                for (Window window : Window.values()) {
+                    AtomicLongArray ring = rings[window.ordinal()];
+                    long slot = second / window.bucketSeconds;
+                    int index = (int) (slot % window.buckets);
+                    while (true) {
+                        long bucket = ring.get(index);
+                        long bucketSlot = bucket >>> 32;
+                        long next;
+                        if (bucketSlot == slot) {
+                            next = bucket + quantity;
+                        } else if (bucketSlot < slot) {
+                            next = slot << 32 | quantity;
+                        } else {
+                            break; // an older sale than the ring still remembers
+                        }
+                        if (ring.compareAndSet(index, bucket, next)) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            long sold(Window window, long nowMillis) {
+                AtomicLongArray ring = rings[window.ordinal()];
+                long current = nowMillis / 1000 / window.bucketSeconds;
+                long total = 0;
+                for (int i = 0; i < window.buckets; i++) {
+                    long bucket = ring.get(i);
+                    if (current - (bucket >>> 32) < window.buckets) {
+                        total += bucket & 0xFFFF_FFFFL;
+                    }
+                }
+                return total;
+            }
+        }
+
+        private final Map<Integer, Rings> byProduct = new ConcurrentHashMap<>();
+        private final Rings catalog = new Rings();
+
+        /** Replays the last day of history from Derby. */
+        void seed(ProductsDataController controller) {
+            controller.forEachSaleSince(System.currentTimeMillis() - Window.DAY.millis(), this::record);
+        }
+
+        @Override
+        public void update(EventObject event) {
+            if (event.stored) {
+                record(event.product.getId(), event.quantity, System.currentTimeMillis());
+            }
+        }
+
+        void record(int productId, int quantity, long atMillis) {
+            // a product without an id has not reached Derby, and neither will its sale
+            if (productId == 0 || quantity <= 0) {
+                return;
+            }
+            byProduct.computeIfAbsent(productId, id -> new Rings()).record(quantity, atMillis);
+            catalog.record(quantity, atMillis);
+        }
+
+        /** Units of one product sold within the window ending now. */
+        long sold(Product product, Window window) {
+            Rings rings = byProduct.get(product.getId());
+            return rings == null ? 0 : rings.sold(window, System.currentTimeMillis());
+        }
+
+        /** Units sold across the catalog within the window ending now. */
+        long sold(Window window) {
+            return catalog.sold(window, System.currentTimeMillis());
+        }
+
+        /** Average units per hour over the window. */
+        double perHour(Product product, Window window) {
+            return sold(product, window) * (double) TimeUnit.HOURS.toMillis(1) / window.millis();
+        }
+
+        /**
+         * Hours until the product runs out at its rate over the last hour,
+         * falling back to the last day when the hour was quiet. Infinite when
+         * it has not sold at all; the restocking signal is a small number.
+         */
+        double hoursOfStockLeft(Product product) {
+            double rate = perHour(product, Window.HOUR);
+            if (rate == 0) {
+                rate = perHour(product, Window.DAY);
+            }
+            return rate == 0 ? Double.POSITIVE_INFINITY : product.getInStoreCount() / rate;
+        }
+    }
+
+    static class ProductsSortedListener implements EventListener {
+
+        Consumer<ProductSort> userView;
+        ProductLoader loader;
+
+        /** {@code userView} puts a sort on the user's table; the app does it through the table's sort order. */
+        ProductsSortedListener(Consumer<ProductSort> userView, ProductLoader loader) {
+            this.userView = userView;
+            this.loader = loader;
+        }
+
+        // the sorted view then keeps itself ordered as rows are added or sold
+        @Override
+        public void update(EventObject event) {
+            userView.accept(event.sortedBy);
+            loader.sortBy(event.sortedBy);
+        }
+
+        @Override
+        public ExecutionContext context() {
+            return ExecutionContext.FX_THREAD;
+        }
+    }
+
+    /**
+     * The inventory without a window: the same products, event bus,
+     * listeners and writer as the desktop app, with results handed back as
+     * {@link EventResult}s instead of shown in labels. The whole catalog is
+     * loaded before the first request. Store updates that the app makes on
+     * the FX thread run on one "products-store" thread here. Adds and sales
+     * may come from any number of threads.
+     */
+    static class InventoryEngine {
+
+        private final ProductsDataController controller;
+        private final ExecutorService storeThread =
+                Executors.newSingleThreadExecutor(daemonThreads("products-store"));
+        private final ProductStore store;
+        private final ProductsWriter writer;
+        private final EventBus bus;
+        private final ExecutiveStats stats;
+        private final SalesRates rates = new SalesRates();
+        private final Set<String> adding = ConcurrentHashMap.newKeySet();
+        private final ChangeFeed feed;
+
+        InventoryEngine(ProductsDataController controller) {
+            this.controller = controller;
+            ProductsDataController.Change.Position feedPosition = controller.changePosition();
+            this.store = new ProductStore(controller.getProducts());
+            rates.seed(controller);
+            // the writer's callbacks only complete futures, so they can run on its own thread
+            this.writer = new ProductsWriter(controller, Runnable::run, WRITE_QUEUE_CAPACITY,
+                    WRITE_BATCH_SIZE, WRITE_BATCH_DELAY_MILLIS);
+            this.stats = new ExecutiveStats(store.products(), storeThread);
+            this.bus = new ConcurrentEventBus(EventBus.defaultExecutors(storeThread));
+
+            bus.subscribe(EventType.ADDED, new ProductAddedDatabaseListener(writer, controller, store.index()));
+            bus.subscribe(EventType.ADDED, new ProductAddedStoreListener(store));
+
+            bus.subscribe(EventType.SOLD, new ProductSoldDatabaseListener(writer, controller, bus));
+            bus.subscribe(EventType.SOLD, new ProductSoldStoreListener());
+            bus.subscribe(EventType.SOLD, stats);
+            bus.subscribe(EventType.SOLD, rates);
+
+            this.feed = new ChangeFeed(controller, store, bus, storeThread, feedPosition);
+            feed.start();
+        }
+
+        /**
+         * Adds a product. Completes once it is both findable and stored in
+         * Derby (or refused), so a sale sent after the reply will find it.
+         */
+        CompletableFuture<EventResult> add(String name, int count) {
+            String key = ProductIndex.key(name);
+            if (store.find(name) != null || !adding.add(key)) {
+                return CompletableFuture.completedFuture(EventResult.DUPLICATE);
+            }
+            Product product = new Product();
+            product.setName(name);
+            product.setOriginalCount(count);
+
+            CompletableFuture<EventResult> result = new CompletableFuture<>();
+            EventObject event = new EventObject(product);
+            event.setOnResult(result::complete);
+            return bus.notify(EventType.ADDED, event)
+                    .thenCombine(result, (stored, outcome) -> outcome)
+                    .whenComplete((outcome, failure) -> adding.remove(key));
+        }
+
+        /** Reserves the stock on the calling thread, then completes once Derby has the sale. */
+        CompletableFuture<EventResult> sell(String name, int quantity) {
+            Product product = store.find(name);
+            if (product == null) {
+                return CompletableFuture.completedFuture(EventResult.UNKNOWN_PRODUCT);
+            }
+            int soldSoFar = controller.reserve(product, quantity);
+            if (soldSoFar < 0) {
+                return CompletableFuture.completedFuture(EventResult.OUT_OF_STOCK);
+            }
+            CompletableFuture<EventResult> result = new CompletableFuture<>();
+            EventObject event = new EventObject(product);
+            event.soldCount = soldSoFar;
+            event.quantity = quantity;
+            event.setOnResult(result::complete);
+            bus.notify(EventType.SOLD, event);
+            return result;
+        }
+
+        /** Runs {@code reader} on the store's thread, where products and stats are consistent. */
+        <T> CompletableFuture<T> read(Function<InventoryEngine, T> reader) {
+            return CompletableFuture.supplyAsync(() -> reader.apply(this), storeThread);
+        }
+
+        Product find(String name) {
+            return store.find(name);
+        }
+
+        ExecutiveStats stats() {
+            return stats;
+        }
+
+        SalesRates rates() {
+            return rates;
+        }
+
+        void close() {
+            feed.close();
+            bus.close();
+            writer.close();
+            controller.closeDatabase();
+        }
+    }
+
+    /**
+     * A small HTTP API over an {@link InventoryEngine}, so many terminals
+     * can sell against one instance. Each request runs on its own virtual
+     * thread where the JVM has them, and simply waits for its result.
+     * Parameters come from the query string or a form body:
+     * <pre>
+     * GET  /products/{name}                 one product
+     * POST /products  name=...&amp;count=...    add a product
+     * POST /sales     name=...&amp;quantity=... sell
+     * GET  /search?q=...&amp;limit=...           names by prefix, then similar names
+     * GET  /stats                           catalog totals, top sellers, sales rates
+     * GET  /metrics                         the {@link Metrics} report
+     * </pre>
+     * Start with {@code --headless}, or run
+     * {@code java productsmanager.ProductsManager$InventoryServer} on a machine
+     * without a display; the port is {@code products.http.port} (8080).
+     */
+    static class InventoryServer {
+
+        static final int DEFAULT_PORT = Integer.getInteger("products.http.port", 8080);
+        private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+        private final InventoryEngine engine;
+        private final HttpServer server;
+        private final ExecutorService requestThreads = EventBus.virtualThreads("products-http");
+
+        InventoryServer(InventoryEngine engine, int port) throws IOException {
+            this.engine = engine;
+            this.server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.setExecutor(requestThreads);
+            server.createContext("/products", this::products);
+            server.createContext("/sales", this::sales);
+            server.createContext("/stats", this::stats);
+            server.createContext("/search", this::search);
+            server.createContext("/metrics", exchange ->
+                    respond(exchange, 200, "text/plain", Metrics.report()));
+        }
+
+        public static void main(String[] args) throws IOException {
+            startMetrics();
+            InventoryEngine engine = new InventoryEngine(new ProductsDataController());
+            InventoryServer server = new InventoryServer(engine, DEFAULT_PORT);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                engine.close();
+            }, "products-shutdown"));
+            server.start();
+            System.out.println("Serving the inventory on port " + server.port());
+        }
+
+        void start() {
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(1);
+            requestThreads.shutdown();
+        }
+
+        private void products(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if ("GET".equals(exchange.getRequestMethod()) && path.startsWith("/products/")) {
+                String name = path.substring("/products/".length());
+                Optional<String> product = await(exchange,
+                        engine.read(e -> Optional.ofNullable(e.find(name)).map(InventoryServer::json)));
+                if (product == null) {
+                    return;
+                }
+                if (product.isPresent()) {
+                    respond(exchange, 200, "application/json", product.get());
+                } else {
+                    respond(exchange, 404, EventResult.UNKNOWN_PRODUCT);
+                }
+            } else if ("POST".equals(exchange.getRequestMethod()) && path.equals("/products")) {
+                Map<String, String> params = params(exchange);
+                String name = params.get("name");
+                Integer count = number(params.get("count"));
+                if (!validName(name) || count == null || count < 0) {
+                    respond(exchange, 400, "text/plain", "name (1-" + ProductsDataController.MAX_NAME_LENGTH
+                            + " characters) and count (0 or more) are required");
+                    return;
+                }
+                result(exchange, engine.add(name, count));
+            } else {
+                respond(exchange, 405, "text/plain", "GET /products/{name} or POST /products");
+            }
+        }
+
+        private void sales(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "POST /sales");
+                return;
+            }
+            Map<String, String> params = params(exchange);
+            String name = params.get("name");
+            Integer quantity = number(params.get("quantity"));
+            if (name == null || quantity == null || quantity <= 0) {
+                respond(exchange, 400, "text/plain", "name and a positive quantity are required");
+                return;
+            }
+            result(exchange, engine.sell(name, quantity));
+        }
+
+        private void search(HttpExchange exchange) throws IOException {
+            Map<String, String> params = params(exchange);
+            String text = params.getOrDefault("q", "");
+            Integer limit = number(params.get("limit"));
+            int max = limit == null || limit <= 0 ? ProductSearch.DEFAULT_LIMIT : Math.min(limit, 100);
+            List<String> names = await(exchange, engine.read(e -> e.store.search().suggest(text, max)));
+            if (names != null) {
+                StringBuilder json = new StringBuilder("[");
+                for (String name : names) {
+                    json.append(json.length() == 1 ? "" : ",").append(quote(name));
+                }
+                respond(exchange, 200, "application/json", json.append(']').toString());
+            }
+        }
+
+        private void stats(HttpExchange exchange) throws IOException {
+            String stats = await(exchange, engine.read(e -> {
+                ExecutiveStats totals = e.stats();
+                SalesRates rates = e.rates();
+                StringBuilder json = new StringBuilder("{\"unitsSold\":").append(totals.unitsSoldProperty().get())
+                        .append(",\"unitsInStore\":").append(totals.unitsInStoreProperty().get())
+                        .append(",\"sellThrough\":").append(totals.sellThroughProperty().get())
+                        .append(",\"topSellers\":[");
+                for (int i = 0; i < totals.topSellers().size(); i++) {
+                    json.append(i == 0 ? "" : ",").append(quote(totals.topSellers().get(i)));
+                }
+                json.append("],\"sold\":{");
+                for (SalesRates.Window window : SalesRates.Window.values()) {
+                    json.append(window.ordinal() == 0 ? "" : ",")
+                            .append(quote(window.name().toLowerCase(Locale.ROOT))).append(':')
+                            .append(rates.sold(window));
+                }
+                return json.append("}}").toString();
+            }));
+            if (stats != null) {
+                respond(exchange, 200, "application/json", stats);
+            }
+        }
+
+        private void result(HttpExchange exchange, CompletableFuture<EventResult> pending) throws IOException {
+            EventResult result = await(exchange, pending);
+            if (result != null) {
+                respond(exchange, statusOf(result), result);
+            }
+        }
+
+        /** The future's value, or null once a 503 has been sent for a failure or timeout. */
+        private static <T> T await(HttpExchange exchange, CompletableFuture<T> pending) throws IOException {
+            try {
+                return pending.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "text/plain", "interrupted");
+            } catch (ExecutionException | TimeoutException e) {
+                respond(exchange, 503, "text/plain", e.toString());
+            }
+            return null;
+        }
+
+        static int statusOf(EventResult result) {
+            switch (result) {
+                case ADDED:
+                    return 201;
+                case BOUGHT:
+                    return 200;
+                case UNKNOWN_PRODUCT:
+                    return 404;
+                case DUPLICATE:
+                case OUT_OF_STOCK:
+                case NOT_BOUGHT:
+                    return 409;
+                default:
+                    return 500;
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, EventResult result) throws IOException {
+            respond(exchange, status, "application/json", "{\"result\":" + quote(result.name())
+                    + ",\"message\":" + quote(result.message) + "}");
+        }
+
+        private static void respond(HttpExchange exchange, int status, String contentType, String body)
+                throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private static Map<String, String> params(HttpExchange exchange) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            parse(exchange.getRequestURI().getRawQuery(), params);
+            try (InputStream in = exchange.getRequestBody()) {
+                parse(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+            return params;
+        }
+
+        private static void parse(String form, Map<String, String> params) {
+            if (form == null || form.isEmpty()) {
+                return;
+            }
+            for (String pair : form.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private static Integer number(String value) {
+            try {
+                return value == null ? null : Integer.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static boolean validName(String name) {
+            return name != null && !name.trim().isEmpty()
+                    && name.length() <= ProductsDataController.MAX_NAME_LENGTH;
+        }
+
+        static String json(Product product) {
+            return "{\"id\":" + product.getId() + ",\"name\":" + quote(product.getName())
+                    + ",\"original\":" + product.getOriginalCount() + ",\"sold\":" + product.getSoldCount()
+                    + ",\"inStore\":" + product.getInStoreCount() + "}";
+        }
+
+        static String quote(String value) {
+            StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package productsmanager;
+
+import org.junit.jupiter.api.Test;
+import productsmanager.ProductsManager.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The columnar {@link ProductStore}: its sorted views must show the rows
+ * in the order the object store's views do, through sales, adds and
+ * re-sorts, and its row views must write through to the columns.
+ */
+class ColumnarStoreTest {
+
+    private static final ProductSort BY_SOLD_THEN_NAME =
+            ProductSort.BY_ID.then(ProductSort.Key.SOLD, false).then(ProductSort.Key.NAME, true);
+
+    @Test
+    void sortedViewsMatchTheObjectStoreThroughSalesAddsAndResorts() {
+        ProductStore objects = ProductStore.empty(ProductStore.Layout.OBJECTS);
+        ProductStore columns = ProductStore.empty(ProductStore.Layout.COLUMNAR);
+        Queue<Runnable> sorter = new ArrayDeque<>();
+        SortedProducts expected = objects.sorted(ProductSort.BY_ID, Runnable::run, Runnable::run);
+        SortedProducts actual = columns.sorted(ProductSort.BY_ID, sorter::add, Runnable::run);
+        Random random = new Random(42);
+
+        addPage(random, 0, 500, objects, columns);
+        assertSameRows(expected, actual);
+
+        expected.sortBy(BY_SOLD_THEN_NAME);
+        actual.sortBy(BY_SOLD_THEN_NAME);
+        // sales and new rows land while the columnar sort is still running
+        sell(random, 200, objects, columns);
+        addPage(random, 500, 40, objects, columns);
+        addPage(random, 540, 3, objects, columns);
+        runAll(sorter);
+        assertSameRows(expected, actual);
+
+        sell(random, 50, objects, columns);
+        assertSameRows(expected, actual);
+
+        ProductSort byStock = ProductSort.BY_ID.then(ProductSort.Key.IN_STORE, true);
+        expected.sortBy(byStock);
+        actual.sortBy(byStock);
+        runAll(sorter);
+        assertSameRows(expected, actual);
+
+        objects.products().clear();
+        columns.products().clear();
+        assertTrue(actual.isEmpty());
+        addPage(random, 0, 100, objects, columns);
+        assertSameRows(expected, actual);
+    }
+
+    @Test
+    void rowViewsWriteThroughAndStayTheSameWhileHeld() {
+        ProductStore store = ProductStore.empty(ProductStore.Layout.COLUMNAR);
+        Product widget = product(0, "Widget", 10, 0);
+        store.add(widget);
+        store.add(product(0, "widget", 5, 0));
+        assertEquals(1, store.products().size(), "a name already in the store is skipped");
+
+        Product view = store.find("WIDGET");
+        assertSame(view, store.products().get(0));
+        view.setSoldCount(4);
+        assertEquals(6, store.products().get(0).getInStoreCount());
+
+        widget.setId(7);
+        store.index().idAssigned(widget);
+        assertSame(view, store.index().findById(7));
+        assertEquals(7, view.getId());
+
+        store.products().clear();
+        assertTrue(store.products().isEmpty());
+        assertNull(store.find("Widget"));
+        view.setSoldCount(5);
+        store.add(product(8, "Gadget", 3, 0));
+        assertEquals(0, store.products().get(0).getSoldCount(), "a view from before the clear wrote into new rows");
+    }
+
+    private static void addPage(Random random, int from, int count, ProductStore... stores) {
+        long seed = random.nextLong();
+        for (ProductStore store : stores) {
+            Random same = new Random(seed);
+            List<Product> page = new ArrayList<>(count);
+            for (int i = from; i < from + count; i++) {
+                page.add(product(i + 1, "item-" + same.nextInt(1000) + "-" + i, 50 + same.nextInt(50), 0));
+            }
+            store.addAll(page);
+        }
+    }
+
+    private static void sell(Random random, int sales, ProductStore objects, ProductStore columns) {
+        for (int i = 0; i < sales; i++) {
+            Product sold = objects.products().get(random.nextInt(objects.products().size()));
+            int soldCount = sold.getSoldCount() + 1 + random.nextInt(3);
+            sold.setSoldCount(soldCount);
+            columns.find(sold.getName()).setSoldCount(soldCount);
+        }
+    }
+
+    private static void runAll(Queue<Runnable> executor) {
+        for (Runnable task = executor.poll(); task != null; task = executor.poll()) {
+            task.run();
+        }
+    }
+
+    private static void assertSameRows(List<Product> expected, List<Product> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName(), "row " + i);
+            assertEquals(expected.get(i).getSoldCount(), actual.get(i).getSoldCount(), "row " + i);
+        }
+    }
+
+    private static Product product(int id, String name, int original, int sold) {
+        Product product = new Product();
+        product.setId(id);
+        product.setName(name);
+        product.setOriginalCount(original);
+        product.setSoldCount(sold);
+        return product;
+    }
+}
@@ -0,0 +1,142 @@
+package productsmanager;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import productsmanager.ProductsManager.*;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The concurrent sell path: many threads selling one product through
+ * {@link ProductsDataController#reserve} and a group-committing
+ * {@link ProductsWriter}, on two controllers that stand in for two
+ * terminals sharing the database.
+ */
+class ConcurrentSellTest {
+
+    private static final int THREADS = 16;
+    private static final int STOCK = 5_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void derbyHoldsExactlyTheConfirmedSalesAndNeverMoreThanTheStock() throws InterruptedException {
+        String database = directory.resolve("db").toString();
+        ProductsDataController first = new ProductsDataController(database);
+        ProductsDataController second = new ProductsDataController(database);
+        try {
+            Product product = new Product();
+            product.setName("stress-" + System.nanoTime());
+            product.setOriginalCount(STOCK);
+            assertTrue(first.addProduct(product));
+
+            ProductsWriter[] writers = {
+                    new ProductsWriter(first, Runnable::run, ProductsManager.WRITE_QUEUE_CAPACITY,
+                            ProductsManager.WRITE_BATCH_SIZE, 1),
+                    new ProductsWriter(second, Runnable::run, ProductsManager.WRITE_QUEUE_CAPACITY,
+                            ProductsManager.WRITE_BATCH_SIZE, 1)};
+            ProductsDataController[] terminals = {first, second};
+            LongAdder confirmed = new LongAdder();
+
+            Thread[] sellers = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                int terminal = t % 2;
+                sellers[t] = new Thread(() -> {
+                    Random random = new Random();
+                    while (true) {
+                        int quantity = 1 + random.nextInt(3);
+                        if (terminals[terminal].reserve(product, quantity) < 0) {
+                            return;
+                        }
+                        writers[terminal].sellProduct(product, product, quantity, success -> {
+                            if (success) {
+                                confirmed.add(quantity);
+                            }
+                        });
+                    }
+                });
+            }
+            for (Thread seller : sellers) {
+                seller.start();
+            }
+            for (Thread seller : sellers) {
+                seller.join();
+            }
+            for (ProductsWriter writer : writers) {
+                writer.close();
+            }
+
+            int soldInDatabase = first.findProduct(product.getName()).getSoldCount();
+            assertEquals(confirmed.sum(), soldInDatabase, "sold in Derby against confirmed sales");
+            assertTrue(soldInDatabase <= STOCK, "oversold: " + soldInDatabase);
+        } finally {
+            first.closeDatabase();
+        }
+    }
+
+    @Test
+    void aSaleDerbyRefusesNeverReachesTheStoreOrTheStats() throws Exception {
+        String database = directory.resolve("db").toString();
+        ProductsDataController terminal = new ProductsDataController(database);
+        ProductsDataController elsewhere = new ProductsDataController(database);
+        ExecutorService fxStandIn = Executors.newSingleThreadExecutor();
+        ProductsWriter writer = new ProductsWriter(terminal, Runnable::run, ProductsManager.WRITE_QUEUE_CAPACITY,
+                ProductsManager.WRITE_BATCH_SIZE, 1);
+        EventBus bus = new ConcurrentEventBus(EventBus.defaultExecutors(fxStandIn));
+        try {
+            Product soldOut = new Product();
+            soldOut.setName("sold-out-" + System.nanoTime());
+            soldOut.setOriginalCount(10);
+            assertTrue(terminal.addProduct(soldOut));
+            Product inStock = new Product();
+            inStock.setName("in-stock-" + System.nanoTime());
+            inStock.setOriginalCount(10);
+            assertTrue(terminal.addProduct(inStock));
+
+            ObservableList<Product> products = FXCollections.observableArrayList(soldOut, inStock);
+            ExecutiveStats stats = new ExecutiveStats(products, fxStandIn);
+            bus.subscribe(EventType.SOLD, new ProductSoldDatabaseListener(writer, terminal, bus));
+            bus.subscribe(EventType.SOLD, new ProductSoldStoreListener());
+            bus.subscribe(EventType.SOLD, stats);
+
+            // the other terminal sells all of one product behind this one's back
+            assertTrue(elsewhere.sellProduct(soldOut.getId(), 10));
+
+            assertEquals(EventResult.NOT_BOUGHT, sell(terminal, bus, soldOut, 4));
+            assertEquals(EventResult.BOUGHT, sell(terminal, bus, inStock, 3));
+
+            String shown = CompletableFuture.supplyAsync(() -> soldOut.getSoldCount() + " "
+                    + inStock.getSoldCount() + " " + stats.unitsSoldProperty().get(), fxStandIn).get();
+            assertEquals("0 3 3", shown, "sold counts of both products and units sold in the stats");
+        } finally {
+            writer.close();
+            bus.close();
+            fxStandIn.shutdown();
+            terminal.closeDatabase();
+        }
+    }
+
+    private static EventResult sell(ProductsDataController controller, EventBus bus, Product product,
+                                    int quantity) throws Exception {
+        int soldSoFar = controller.reserve(product, quantity);
+        assertTrue(soldSoFar >= 0, "reserve refused");
+        CompletableFuture<EventResult> result = new CompletableFuture<>();
+        EventObject event = new EventObject(product);
+        event.soldCount = soldSoFar;
+        event.quantity = quantity;
+        event.setOnResult(result::complete);
+        bus.notify(EventType.SOLD, event);
+        return result.get(10, TimeUnit.SECONDS);
+    }
+}
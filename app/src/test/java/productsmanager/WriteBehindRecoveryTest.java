@@ -0,0 +1,77 @@
+package productsmanager;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import productsmanager.ProductsManager.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Crash recovery for write-behind persistence. A child JVM sells through a
+ * write-behind controller whose checkpointer never runs, and halts without
+ * shutting down. Reopening the database must replay the journal and restore
+ * every acknowledged sale.
+ */
+class WriteBehindRecoveryTest {
+
+    private static final int SALES = 2_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void journalReplayRestoresEverySaleAcknowledgedBeforeAHalt() throws IOException, InterruptedException {
+        String database = directory.resolve("db").toString();
+        Process child = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dproducts.checkpoint.millis=" + TimeUnit.HOURS.toMillis(1),
+                "-Dderby.stream.error.file=" + directory.resolve("derby.log"),
+                "-cp", System.getProperty("java.class.path"),
+                WriteBehindRecoveryTest.class.getName(), database, String.valueOf(SALES))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        List<String> output = new ArrayList<>();
+        try (Scanner lines = new Scanner(child.getInputStream())) {
+            while (lines.hasNextLine()) {
+                output.add(lines.nextLine());
+            }
+        }
+        assertTrue(child.waitFor(2, TimeUnit.MINUTES), "child still running");
+        assertFalse(output.isEmpty(), "child printed no product name");
+        String name = output.get(output.size() - 1);
+
+        ProductsDataController recovered = new ProductsDataController(database,
+                ProductsDataController.DEFAULT_POOL_SIZE, ProductsDataController.Persistence.WRITE_BEHIND);
+        try {
+            Product product = recovered.findProduct(name);
+            assertNotNull(product, "product lost: " + name);
+            assertEquals(SALES, product.getSoldCount());
+        } finally {
+            recovered.closeDatabase();
+        }
+    }
+
+    /** The child: sells, prints the product's name, and halts with the sales only in the journal. */
+    public static void main(String[] args) {
+        int sales = Integer.parseInt(args[1]);
+        ProductsDataController controller = new ProductsDataController(args[0],
+                ProductsDataController.DEFAULT_POOL_SIZE, ProductsDataController.Persistence.WRITE_BEHIND);
+        Product product = new Product();
+        product.setName("recovery-" + System.nanoTime());
+        product.setOriginalCount(Integer.MAX_VALUE);
+        controller.addProduct(product);
+        for (int i = 0; i < sales; i++) {
+            controller.sellProduct(product.getId(), 1);
+        }
+        System.out.println(product.getName());
+        Runtime.getRuntime().halt(0);
+    }
+}
@@ -0,0 +1,58 @@
+package productsmanager;
+
+import productsmanager.ProductsManager.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap used by a catalog in a {@link ProductStore} of each
+ * {@link ProductStore.Layout}, with its index, its search and the two
+ * sorted views the tables show. Run with a fixed heap so GC noise stays
+ * small: {@code java -Xmx4g -cp benchmarks.jar productsmanager.ColumnarFootprint [products]}.
+ */
+public class ColumnarFootprint {
+
+    private static final int PAGE = 1_000;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        for (ProductStore.Layout layout : ProductStore.Layout.values()) {
+            long baseline = usedHeap();
+            ProductStore store = ProductStore.empty(layout);
+            List<SortedProducts> tables = new ArrayList<>();
+            for (int table = 0; table < 2; table++) {
+                tables.add(store.sorted(ProductSort.BY_ID, Runnable::run, Runnable::run));
+            }
+            for (int from = 0; from < count; from += PAGE) {
+                List<Product> page = new ArrayList<>(PAGE);
+                for (int i = from; i < Math.min(count, from + PAGE); i++) {
+                    Product product = new Product();
+                    product.setId(i + 1);
+                    product.setName(String.format("SKU-%07d", i));
+                    product.setOriginalCount(1000);
+                    product.setSoldCount(i % 1000);
+                    page.add(product);
+                }
+                store.addAll(page);
+            }
+            report(layout, count, usedHeap() - baseline);
+            if (store.find("sku-0000042") == null || tables.get(0).size() != count) {
+                throw new IllegalStateException(layout + " store lost a row");
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(ProductStore.Layout layout, int count, long bytes) {
+        System.out.printf("%-16s %,10d products  %,8.1f MB  %,6.1f bytes/product%n",
+                layout, count, bytes / 1e6, (double) bytes / count);
+    }
+}
@@ -0,0 +1,83 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One bulk CSV import, and one export of everything imported so far,
+ * against embedded Derby in a throw-away directory that starts with one
+ * file's worth of rows. Each iteration imports a freshly generated file of
+ * new names, so nothing is skipped as a duplicate.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CsvImportBenchmark {
+
+    @Param({"100000"})
+    int rows;
+
+    private Path directory;
+    private ProductsDataController controller;
+    private Path csv;
+    private Path exported;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("csv-bench");
+        controller = new ProductsDataController(directory.resolve("db").toString());
+        csv = directory.resolve("products.csv");
+        exported = directory.resolve("products-export.csv");
+        writeCsv();
+        controller.importProducts(csv);
+    }
+
+    @Setup(Level.Iteration)
+    public void writeCsv() throws IOException {
+        String run = Long.toString(System.nanoTime(), 36);
+        try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            out.write("name,original,sold");
+            out.newLine();
+            for (int i = 0; i < rows; i++) {
+                out.write("csv-" + run + "-" + i + "," + (100 + i % 900) + "," + (i % 100));
+                out.newLine();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        controller.closeDatabase();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int importCsv() throws IOException, SQLException {
+        ProductsDataController.ImportResult result = controller.importProducts(csv);
+        if (result.imported != rows || result.skipped != 0) {
+            throw new IllegalStateException("expected " + rows + " rows, imported " + result.imported
+                    + " and skipped " + result.skipped);
+        }
+        return result.imported;
+    }
+
+    @Benchmark
+    public int exportCsv() throws IOException, SQLException {
+        return controller.exportProducts(exported);
+    }
+}
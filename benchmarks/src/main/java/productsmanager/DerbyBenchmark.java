@@ -0,0 +1,96 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link ProductsDataController} throughput against embedded Derby in a
+ * throw-away directory: single inserts and sales (one commit each), a
+ * 100-row batch insert, and reads by name and by page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DerbyBenchmark {
+
+    private static final int SEEDED = 10_000;
+
+    private Path directory;
+    private ProductsDataController controller;
+    private List<Product> seeded;
+    private int inserted;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("derby-bench");
+        controller = new ProductsDataController(directory.resolve("db").toString());
+        seeded = new ArrayList<>(SEEDED);
+        for (int i = 0; i < SEEDED; i++) {
+            seeded.add(newProduct());
+        }
+        controller.writeBatch(seeded);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        controller.closeDatabase();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private Product newProduct() {
+        Product product = new Product();
+        product.setName("bench-" + inserted++);
+        product.setOriginalCount(Integer.MAX_VALUE);
+        return product;
+    }
+
+    private Product nextSeeded() {
+        next = (next + 1) % SEEDED;
+        return seeded.get(next);
+    }
+
+    @Benchmark
+    public boolean insert() {
+        return controller.addProduct(newProduct());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public boolean insertBatch() {
+        List<Product> batch = new ArrayList<>(100);
+        for (int i = 0; i < 100; i++) {
+            batch.add(newProduct());
+        }
+        return controller.writeBatch(batch);
+    }
+
+    @Benchmark
+    public boolean sell() {
+        return controller.sellProduct(nextSeeded().getId(), 1);
+    }
+
+    @Benchmark
+    public Product selectByName() {
+        return controller.findProduct(nextSeeded().getName());
+    }
+
+    @Benchmark
+    public List<Product> selectPage() {
+        return controller.getProductsPage(ProductSort.BY_NAME, null, 100);
+    }
+}
@@ -0,0 +1,58 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import productsmanager.ProductsManager.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out cost of one {@code sold} notification to N synchronous listeners,
+ * for the string-keyed {@link EventManager} and for {@link ConcurrentEventBus}.
+ * {@code timed=false} measures the bus alone; {@code timed=true} adds its
+ * per-notify and per-listener latency histograms, which {@link EventManager}
+ * does not have. Run with {@code -t N} for N producer threads and
+ * {@code -prof gc} for bytes allocated per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventNotifyBenchmark {
+
+    @Param({"1", "3", "8"})
+    int listeners;
+
+    @Param({"false", "true"})
+    boolean timed;
+
+    private EventManager eventManager;
+    private ConcurrentEventBus eventBus;
+    private Product product;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        product = new Product();
+        product.setName("bench");
+        product.setOriginalCount(100);
+        EventListener listener = event -> blackhole.consume(event.soldCount);
+        eventManager = new EventManager("added", "sold", "sorted");
+        eventBus = new ConcurrentEventBus(null, timed);
+        for (int i = 0; i < listeners; i++) {
+            eventManager.subscribe("sold", listener);
+            eventBus.subscribe(EventType.SOLD, listener);
+        }
+    }
+
+    @Benchmark
+    public Object eventManager() {
+        return eventManager.notify("sold", new EventObject(product));
+    }
+
+    @Benchmark
+    public Object concurrentEventBus() {
+        return eventBus.notify(EventType.SOLD, new EventObject(product));
+    }
+}
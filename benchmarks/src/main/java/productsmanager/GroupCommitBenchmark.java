@@ -0,0 +1,88 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Sales per second into embedded Derby: one conditional update and commit
+ * per sale, against the group-committing {@link ProductsWriter}, for
+ * write-through and write-behind persistence. A writer batch counts once
+ * every sale in it has been acknowledged.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupCommitBenchmark {
+
+    private static final int PRODUCTS = 500;
+    private static final int BATCH = 1_000;
+
+    @Param({"DIRECT", "WRITE_BEHIND"})
+    String persistence;
+
+    private Path directory;
+    private ProductsDataController controller;
+    private ProductsWriter writer;
+    private List<Product> products;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("group-commit-bench");
+        controller = new ProductsDataController(directory.resolve("db").toString(),
+                ProductsDataController.DEFAULT_POOL_SIZE, ProductsDataController.Persistence.valueOf(persistence));
+        products = new ArrayList<>(PRODUCTS);
+        for (int i = 0; i < PRODUCTS; i++) {
+            Product product = new Product();
+            product.setName("bench-" + i);
+            product.setOriginalCount(Integer.MAX_VALUE);
+            products.add(product);
+        }
+        controller.writeBatch(products);
+        writer = new ProductsWriter(controller, Runnable::run, ProductsManager.WRITE_QUEUE_CAPACITY,
+                ProductsManager.WRITE_BATCH_SIZE, ProductsManager.WRITE_BATCH_DELAY_MILLIS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+        controller.closeDatabase();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private Product nextProduct() {
+        next = (next + 1) % PRODUCTS;
+        return products.get(next);
+    }
+
+    @Benchmark
+    public boolean commitPerSale() {
+        return controller.sellProduct(nextProduct().getId(), 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void groupCommit() throws InterruptedException {
+        CountDownLatch acknowledged = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            Product product = nextProduct();
+            writer.sellProduct(product, product, 1, success -> acknowledged.countDown());
+        }
+        acknowledged.await();
+    }
+}
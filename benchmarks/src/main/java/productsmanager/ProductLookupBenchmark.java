@@ -0,0 +1,71 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The buy handler's product lookup by name: the linear scan it used to do
+ * over the product list, against the {@link ProductIndex} behind
+ * {@link ProductStore#find}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class ProductLookupBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int products;
+
+    private ProductStore store;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<Product> loaded = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            Product product = new Product();
+            product.setId(i + 1);
+            product.setName("product-" + i);
+            product.setOriginalCount(1000);
+            loaded.add(product);
+        }
+        store = new ProductStore(Collections.emptyList());
+        store.addAll(loaded);
+        Random random = new Random(42);
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "Product-" + random.nextInt(products);
+        }
+    }
+
+    private String nextName() {
+        next = (next + 1) & (names.length - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public Product linearScan() {
+        String name = nextName();
+        for (Product product : store.products()) {
+            if (product.getName().equalsIgnoreCase(name)) {
+                return product;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Product index() {
+        return store.find(nextName());
+    }
+}
@@ -0,0 +1,85 @@
+package productsmanager;
+
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type-ahead in the buy and add panels: prefix matches, and similar names
+ * for a query with two letters swapped, through {@link ProductSearch}.
+ * Names are an adjective, a noun and a number, so trigrams repeat the way
+ * they do in a real catalog.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final String[] ADJECTIVES = {"Blue", "Red", "Green", "Large", "Small", "Deluxe",
+            "Basic", "Pro", "Ultra", "Mini", "Classic", "Smart"};
+    private static final String[] NOUNS = {"Widget", "Gadget", "Lamp", "Chair", "Table", "Phone", "Cable",
+            "Charger", "Mouse", "Keyboard", "Monitor", "Speaker", "Bottle", "Backpack"};
+
+    @Param({"10000", "100000", "1000000"})
+    int products;
+
+    private ProductSearch search;
+    private String[] prefixes;
+    private String[] typos;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<Product> loaded = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            Product product = new Product();
+            product.setId(i + 1);
+            product.setName(ADJECTIVES[random.nextInt(ADJECTIVES.length)] + " "
+                    + NOUNS[random.nextInt(NOUNS.length)] + " " + i);
+            product.setOriginalCount(1000);
+            loaded.add(product);
+        }
+        ProductStore store = new ProductStore(Collections.emptyList());
+        store.addAll(loaded);
+        search = store.search();
+
+        prefixes = new String[1024];
+        typos = new String[1024];
+        for (int i = 0; i < prefixes.length; i++) {
+            String name = loaded.get(random.nextInt(products)).getName();
+            prefixes[i] = name.substring(0, name.indexOf(' ') + 3);
+            // swap two letters inside the noun
+            int at = name.indexOf(' ') + 2;
+            typos[i] = name.substring(0, at) + name.charAt(at + 1) + name.charAt(at) + name.substring(at + 2);
+        }
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (prefixes.length - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<String> prefix() {
+        return search.startingWith(prefixes[nextQuery()], ProductSearch.DEFAULT_LIMIT);
+    }
+
+    @Benchmark
+    public List<String> similar() {
+        return search.similarTo(typos[nextQuery()], ProductSearch.DEFAULT_LIMIT);
+    }
+
+    @Benchmark
+    public List<String> suggestTypo() {
+        return search.suggest(typos[nextQuery()], ProductSearch.DEFAULT_LIMIT);
+    }
+}
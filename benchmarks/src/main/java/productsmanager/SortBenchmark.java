@@ -0,0 +1,88 @@
+package productsmanager;
+
+import javafx.collections.transformation.SortedList;
+import org.openjdk.jmh.annotations.*;
+import productsmanager.ProductsManager.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What re-sorting the whole store costs when the user re-sorts, switching
+ * between sold-descending and by-name order every call. {@code sortedList}
+ * is the {@link SortedList} the tables used to show, which does all of it on
+ * the FX thread. {@code sortedProductView} is the full round trip through a
+ * {@link SortedProductView}, the sort included; of that, only the copy and
+ * the swap hold up the FX thread, and their timers ({@code fx.sort.copy},
+ * {@code fx.sort.swap}) are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SortBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int products;
+
+    private final ProductSort[] sorts = {
+            ProductSort.BY_ID.then(ProductSort.Key.SOLD, false).then(ProductSort.Key.NAME, true),
+            ProductSort.BY_NAME};
+    private final List<Comparator<Product>> comparators = new ArrayList<>();
+    private ExecutorService sorter;
+    private SortedList<Product> sortedList;
+    private SortedProductView view;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<Product> loaded = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            Product product = new Product();
+            product.setId(i + 1);
+            product.setName("product-" + random.nextInt(products));
+            product.setOriginalCount(1000);
+            product.setSoldCount(random.nextInt(1000));
+            loaded.add(product);
+        }
+        ProductStore store = new ProductStore(Collections.emptyList());
+        store.addAll(loaded);
+        for (ProductSort sort : sorts) {
+            comparators.add(sort.comparator());
+        }
+        sortedList = new SortedList<>(store.products());
+        sorter = Executors.newSingleThreadExecutor();
+        // the benchmark thread plays the FX thread
+        view = new SortedProductView(store.products(), ProductSort.BY_ID, sorter, Runnable::run);
+        Metrics.reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sorter.shutdown();
+        System.out.print(Metrics.report());
+    }
+
+    @Benchmark
+    public Product sortedList() {
+        next ^= 1;
+        sortedList.setComparator(comparators.get(next));
+        return sortedList.get(0);
+    }
+
+    @Benchmark
+    public Product sortedProductView() {
+        next ^= 1;
+        view.sortBy(sorts[next]).join();
+        return view.get(0);
+    }
+}